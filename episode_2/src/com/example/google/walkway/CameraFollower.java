@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway;
+
+import com.example.google.walkway.model.LocationFilter;
+import com.google.android.gms.maps.CameraUpdateFactory;
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.Projection;
+import com.google.android.gms.maps.model.LatLng;
+
+import android.graphics.Point;
+import android.location.Location;
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Keeps the map camera on the walker. Location fixes are smoothed with a
+ * {@link LocationFilter}, and the camera is only moved once the smoothed
+ * position is a threshold distance (on screen) away from where the camera
+ * was last moved to, and at most once per interval; in between, moves are
+ * deferred to the end of the interval. The app's own camera animations
+ * (e.g. to a selected place) hold following off for a while, so the two
+ * don't fight.
+ * <p>
+ * Must be used on the UI thread.
+ */
+public class CameraFollower {
+    private final GoogleMap mMap;
+    private final Handler mHandler;
+    private final LocationFilter mFilter;
+    private final int mThresholdPx;
+    private final long mMinIntervalMs;
+    private final int mAnimationMs;
+    private final long mHoldOffMs;
+
+    private boolean mEnabled;
+    private boolean mMoveScheduled;
+    private long mLastMoveTime;
+    private long mHoldOffUntil;
+
+    /** Where the camera was last moved to, or null if it has moved since. */
+    private LatLng mLastTarget;
+
+    private int mFixCount;
+    private int mMoveCount;
+    private int mBelowThresholdCount;
+    private int mRateLimitedCount;
+    private int mHeldOffCount;
+
+    private final Runnable mMoveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mMoveScheduled = false;
+            maybeMove();
+        }
+    };
+
+    /**
+     * @param speed The expected walking speed, in meters per second.
+     * @param thresholdPx How far, in pixels, the walker has to be from the
+     *        camera target for the camera to move.
+     * @param minIntervalMs The minimum time between camera moves.
+     * @param animationMs The duration of a camera move.
+     * @param holdOffMs How long to stop following after the app moves the
+     *        camera itself.
+     */
+    public CameraFollower(GoogleMap map, Handler handler, double speed, int thresholdPx,
+            long minIntervalMs, int animationMs, long holdOffMs) {
+        mMap = map;
+        mHandler = handler;
+        mFilter = new LocationFilter(speed);
+        mThresholdPx = thresholdPx;
+        mMinIntervalMs = minIntervalMs;
+        mAnimationMs = animationMs;
+        mHoldOffMs = holdOffMs;
+    }
+
+    public void onLocationChanged(Location location) {
+        mFixCount++;
+        mFilter.update(location.getLatitude(), location.getLongitude(), location.getAccuracy(),
+                location.getTime());
+        if (mEnabled) {
+            maybeMove();
+        }
+    }
+
+    /** Start or stop following. Starting moves the camera to the walker right away. */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        mHandler.removeCallbacks(mMoveRunnable);
+        mMoveScheduled = false;
+        mLastTarget = null;
+        mHoldOffUntil = 0;
+        mLastMoveTime = 0;
+        if (enabled) {
+            maybeMove();
+        }
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /** Stop following for a while, because the app is moving the camera. */
+    public void holdOff() {
+        mHoldOffUntil = SystemClock.uptimeMillis() + mHoldOffMs;
+        mLastTarget = null;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("fixes=%d moves=%d belowThreshold=%d rateLimited=%d heldOff=%d",
+                mFixCount, mMoveCount, mBelowThresholdCount, mRateLimitedCount, mHeldOffCount);
+    }
+
+    private void maybeMove() {
+        if (!mFilter.hasFix()) {
+            return;
+        }
+
+        long now = SystemClock.uptimeMillis();
+        if (now < mHoldOffUntil) {
+            mHeldOffCount++;
+            scheduleMove(mHoldOffUntil);
+            return;
+        }
+
+        // Compare with the target of a move that may still be animating,
+        // rather than with where the camera happens to be.
+        LatLng target = new LatLng(mFilter.getLat(), mFilter.getLng());
+        LatLng current = mLastTarget != null ? mLastTarget : mMap.getCameraPosition().target;
+        Projection projection = mMap.getProjection();
+        Point from = projection.toScreenLocation(current);
+        Point to = projection.toScreenLocation(target);
+        long dx = to.x - from.x;
+        long dy = to.y - from.y;
+        if (dx * dx + dy * dy < (long) mThresholdPx * mThresholdPx) {
+            mBelowThresholdCount++;
+            return;
+        }
+
+        if (now < mLastMoveTime + mMinIntervalMs) {
+            mRateLimitedCount++;
+            scheduleMove(mLastMoveTime + mMinIntervalMs);
+            return;
+        }
+
+        mMap.animateCamera(CameraUpdateFactory.newLatLng(target), mAnimationMs, null);
+        mLastTarget = target;
+        mLastMoveTime = now;
+        mMoveCount++;
+    }
+
+    /** Move at the time, to wherever the walker is by then. */
+    private void scheduleMove(long uptimeMillis) {
+        if (!mMoveScheduled) {
+            mMoveScheduled = true;
+            mHandler.postAtTime(mMoveRunnable, uptimeMillis);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures frame times during user interactions (e.g. pager swipes, camera
+ * animations), using Choreographer frame callbacks. The frames between
+ * {@link #begin(String)} and {@link #end(String)} of an interaction are
+ * added to its {@link Stats}; frames during overlapping interactions count
+ * towards each of them.
+ * <p>
+ * The report can be written to a file and checked against budgets, so that
+ * automated runs can fail when frame times regress. Does nothing before API
+ * 16. Must be used on the UI thread.
+ */
+public class FrameMetrics {
+    private static final String LOG_TAG = FrameMetrics.class.getName();
+
+    public static final String PAGER_SWIPE = "pager_swipe";
+    public static final String DRAWER_CLOSE = "drawer_close";
+    public static final String MARKER_TAP = "marker_tap";
+    public static final String CAMERA_ANIMATION = "camera_animation";
+
+    /** Interactions that aren't ended are ended after this long. */
+    private static final long MAX_INTERACTION_MS = 5000;
+
+    /** Frame times are recorded with 1ms resolution up to this. */
+    private static final int HISTOGRAM_MS = 1000;
+
+    private final long mFrameIntervalNanos;
+
+    /** The end time of each ongoing interaction. */
+    private final HashMap<String, Long> mActive = new HashMap<String, Long>();
+
+    private final LinkedHashMap<String, Stats> mStats = new LinkedHashMap<String, Stats>();
+
+    private Object mFrameCallback;
+    private boolean mCallbackPosted;
+    private long mLastFrameNanos;
+
+    /** Frame time statistics for an interaction. */
+    public static class Stats {
+        public int frames;
+
+        /** Frames that took longer than one and a half refresh intervals. */
+        public int slowFrames;
+
+        /** Refresh intervals in which no new frame was drawn. */
+        public int droppedFrames;
+
+        public int maxMillis;
+
+        private final int[] mHistogram = new int[HISTOGRAM_MS + 1];
+
+        void add(long frameNanos, long intervalNanos) {
+            frames++;
+            if (frameNanos * 2 > intervalNanos * 3) {
+                slowFrames++;
+            }
+            droppedFrames += Math.max(0, (frameNanos + intervalNanos / 2) / intervalNanos - 1);
+
+            int millis = (int) Math.min(HISTOGRAM_MS, frameNanos / 1000000);
+            maxMillis = Math.max(maxMillis, millis);
+            mHistogram[millis]++;
+        }
+
+        /** Return the frame time at the percentile (0-100), in ms. */
+        public int getPercentileMillis(int percentile) {
+            int rank = (int) Math.ceil(frames * percentile / 100.0);
+            int count = 0;
+            for (int millis = 0; millis <= HISTOGRAM_MS; millis++) {
+                count += mHistogram[millis];
+                if (count >= rank && count > 0) {
+                    return millis;
+                }
+            }
+            return 0;
+        }
+
+        public float getSlowFraction() {
+            return frames == 0 ? 0 : slowFrames / (float) frames;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("frames=%d slow=%d dropped=%d p50=%d p90=%d p99=%d max=%d",
+                    frames, slowFrames, droppedFrames, getPercentileMillis(50),
+                    getPercentileMillis(90), getPercentileMillis(99), maxMillis);
+        }
+    }
+
+    /**
+     * @param refreshRate The display refresh rate, in frames per second.
+     */
+    public FrameMetrics(float refreshRate) {
+        mFrameIntervalNanos = (long) (1e9 / refreshRate);
+    }
+
+    /** Start (or extend) measuring the frames of an interaction. */
+    public void begin(String interaction) {
+        track(interaction, MAX_INTERACTION_MS);
+    }
+
+    /**
+     * Measure the frames of an interaction for a time, for interactions
+     * without a clear end, e.g. a tap.
+     */
+    public void track(String interaction, long millis) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+
+        mActive.put(interaction, SystemClock.uptimeMillis() + millis);
+        if (!mStats.containsKey(interaction)) {
+            mStats.put(interaction, new Stats());
+        }
+        if (!mCallbackPosted) {
+            if (mFrameCallback == null) {
+                mFrameCallback = FrameCallbacks.create(this);
+            }
+            FrameCallbacks.post(mFrameCallback);
+            mCallbackPosted = true;
+        }
+    }
+
+    /** Stop measuring the frames of an interaction. */
+    public void end(String interaction) {
+        mActive.remove(interaction);
+    }
+
+    /** Return the statistics of each interaction so far, by name. */
+    public Map<String, Stats> getStats() {
+        return mStats;
+    }
+
+    /**
+     * Return a description of each interaction that exceeds a budget, or an
+     * empty list if all are within budget.
+     *
+     * @param maxSlowFraction The maximum fraction of slow frames.
+     * @param maxP90Millis The maximum 90th percentile frame time, in ms.
+     */
+    public List<String> checkBudgets(float maxSlowFraction, int maxP90Millis) {
+        List<String> violations = new ArrayList<String>();
+        for (Map.Entry<String, Stats> entry : mStats.entrySet()) {
+            Stats stats = entry.getValue();
+            if (stats.getSlowFraction() > maxSlowFraction
+                    || stats.getPercentileMillis(90) > maxP90Millis) {
+                violations.add(entry.getKey() + " " + stats);
+            }
+        }
+        return violations;
+    }
+
+    /**
+     * Write the report, one interaction per line, e.g. for a test run to
+     * pull and compare with a previous build.
+     */
+    public void writeReport(File file) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Stats> entry : mStats.entrySet()) {
+            sb.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private void onFrame(long frameTimeNanos) {
+        mCallbackPosted = false;
+
+        // The first frame of a stretch only marks its start.
+        if (mLastFrameNanos != 0) {
+            long frameNanos = frameTimeNanos - mLastFrameNanos;
+            for (String interaction : mActive.keySet()) {
+                mStats.get(interaction).add(frameNanos, mFrameIntervalNanos);
+            }
+        }
+
+        long now = SystemClock.uptimeMillis();
+        for (Iterator<Long> it = mActive.values().iterator(); it.hasNext();) {
+            if (it.next() < now) {
+                it.remove();
+            }
+        }
+
+        if (mActive.isEmpty()) {
+            mLastFrameNanos = 0;
+            Log.d(LOG_TAG, "Frame metrics:\n" + this);
+        } else {
+            mLastFrameNanos = frameTimeNanos;
+            FrameCallbacks.post(mFrameCallback);
+            mCallbackPosted = true;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class FrameCallbacks {
+        static Object create(final FrameMetrics metrics) {
+            return new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    metrics.onFrame(frameTimeNanos);
+                }
+            };
+        }
+
+        static void post(Object callback) {
+            Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) callback);
+        }
+    }
+}
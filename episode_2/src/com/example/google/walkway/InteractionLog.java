@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A timestamped log of user interactions (drawer toggles, place type
+ * changes, marker taps and pager swipes), for replaying them with
+ * {@link InteractionReplayer}.
+ * <p>
+ * The file format is a header line, then one line per interaction: the time
+ * in ms since the first interaction, the interaction name and two integer
+ * arguments, separated by spaces.
+ */
+public class InteractionLog {
+    private static final String HEADER = "walkway-interactions 1";
+
+    /** Arguments: the drawer (DRAWER_NAV or DRAWER_PLACES), unused. */
+    public static final int DRAWER_OPEN = 0;
+    public static final int DRAWER_CLOSE = 1;
+
+    /** Arguments: the place type ordinal, 1 if selected or 0 if not. */
+    public static final int PLACE_TYPE = 2;
+
+    /** Arguments: the place index, unused. */
+    public static final int MARKER_TAP = 3;
+    public static final int PAGE_SWIPE = 4;
+
+    static final String[] NAMES = {
+        "drawer_open", "drawer_close", "place_type", "marker_tap", "page_swipe"
+    };
+
+    public static final int DRAWER_NAV = 0;
+    public static final int DRAWER_PLACES = 1;
+
+    private int[] mTimes = new int[64];
+    private int[] mTypes = new int[64];
+    private int[] mArgs1 = new int[64];
+    private int[] mArgs2 = new int[64];
+    private int mSize;
+
+    private long mStartNanos = -1;
+
+    /** Record an interaction now. */
+    public void record(int type, int arg1, int arg2) {
+        long now = System.nanoTime();
+        if (mStartNanos < 0) {
+            mStartNanos = now;
+        }
+        add((int) ((now - mStartNanos) / 1000000), type, arg1, arg2);
+    }
+
+    private void add(int time, int type, int arg1, int arg2) {
+        if (mSize == mTimes.length) {
+            mTimes = grow(mTimes);
+            mTypes = grow(mTypes);
+            mArgs1 = grow(mArgs1);
+            mArgs2 = grow(mArgs2);
+        }
+        mTimes[mSize] = time;
+        mTypes[mSize] = type;
+        mArgs1[mSize] = arg1;
+        mArgs2[mSize] = arg2;
+        mSize++;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /** Return the time of an interaction, in ms since the first one. */
+    public int getTime(int index) {
+        return mTimes[index];
+    }
+
+    public int getType(int index) {
+        return mTypes[index];
+    }
+
+    public int getArg1(int index) {
+        return mArgs1[index];
+    }
+
+    public int getArg2(int index) {
+        return mArgs2[index];
+    }
+
+    public void write(File file) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(HEADER);
+            writer.write('\n');
+            for (int i = 0; i < mSize; i++) {
+                writer.write(String.format("%d %s %d %d\n", mTimes[i], NAMES[mTypes[i]], mArgs1[i],
+                        mArgs2[i]));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    public static InteractionLog read(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            if (!HEADER.equals(reader.readLine())) {
+                throw new IOException("Not an interaction log: " + file);
+            }
+
+            InteractionLog log = new InteractionLog();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                if (fields.length != 4) {
+                    throw new IOException("Bad interaction: " + line);
+                }
+                try {
+                    log.add(Integer.parseInt(fields[0]), typeOf(fields[1]),
+                            Integer.parseInt(fields[2]), Integer.parseInt(fields[3]));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad interaction: " + line);
+                }
+            }
+            return log;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static int typeOf(String name) throws IOException {
+        for (int type = 0; type < NAMES.length; type++) {
+            if (NAMES[type].equals(name)) {
+                return type;
+            }
+        }
+        throw new IOException("Unknown interaction: " + name);
+    }
+
+    private static int[] grow(int[] array) {
+        int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
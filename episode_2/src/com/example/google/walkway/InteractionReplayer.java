@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Plays back an {@link InteractionLog} against a {@link Target}, either the
+ * activity or a stand-in such as {@link StandInMap}, and reports the time
+ * spent on each kind of interaction and the operations the target counted.
+ * Reports of the same log can be compared between builds.
+ */
+public class InteractionReplayer {
+    /** Performs recorded interactions. */
+    public interface Target {
+        /**
+         * Perform an interaction; see the InteractionLog constants for the
+         * arguments. Operations (e.g. markers added) can be counted in the
+         * report.
+         */
+        void perform(int type, int arg1, int arg2, Report report);
+    }
+
+    /** Timing and operation counts of a replay. */
+    public static class Report {
+        private final int[] mCounts = new int[InteractionLog.NAMES.length];
+        private final long[] mTotalNanos = new long[InteractionLog.NAMES.length];
+        private final long[] mMaxNanos = new long[InteractionLog.NAMES.length];
+        private final LinkedHashMap<String, Long> mOperations = new LinkedHashMap<String, Long>();
+        private long mElapsedMillis;
+
+        /** Add to the count of an operation. */
+        public void count(String operation, long n) {
+            Long total = mOperations.get(operation);
+            mOperations.put(operation, (total == null ? 0 : total) + n);
+        }
+
+        public long getOperationCount(String operation) {
+            Long total = mOperations.get(operation);
+            return total == null ? 0 : total;
+        }
+
+        public long getElapsedMillis() {
+            return mElapsedMillis;
+        }
+
+        void add(int type, long nanos) {
+            mCounts[type]++;
+            mTotalNanos[type] += nanos;
+            mMaxNanos[type] = Math.max(mMaxNanos[type], nanos);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("elapsed %dms\n", mElapsedMillis));
+            for (int type = 0; type < mCounts.length; type++) {
+                if (mCounts[type] > 0) {
+                    sb.append(String.format("%s count=%d total=%.1fms max=%.1fms\n",
+                            InteractionLog.NAMES[type], mCounts[type], mTotalNanos[type] / 1e6,
+                            mMaxNanos[type] / 1e6));
+                }
+            }
+            for (Map.Entry<String, Long> entry : mOperations.entrySet()) {
+                sb.append(String.format("%s %d\n", entry.getKey(), entry.getValue()));
+            }
+            return sb.toString();
+        }
+    }
+
+    private final InteractionLog mLog;
+    private Target mTarget;
+    private final Report mReport = new Report();
+
+    // The state of a replay on a handler; see start().
+    private Handler mHandler;
+    private boolean mMaxSpeed;
+    private Runnable mOnDone;
+    private long mStartMillis;
+    private int mNext;
+
+    private final Runnable mStep = new Runnable() {
+        @Override
+        public void run() {
+            if (mNext < mLog.size()) {
+                perform(mNext++);
+            }
+
+            if (mNext == mLog.size()) {
+                mReport.mElapsedMillis = SystemClock.uptimeMillis() - mStartMillis;
+                Runnable onDone = mOnDone;
+                mHandler = null;
+                onDone.run();
+            } else if (mMaxSpeed) {
+                mHandler.post(this);
+            } else {
+                mHandler.postAtTime(this, mStartMillis + mLog.getTime(mNext));
+            }
+        }
+    };
+
+    public InteractionReplayer(InteractionLog log, Target target) {
+        mLog = log;
+        mTarget = target;
+    }
+
+    /**
+     * Replay all the interactions now, back to back, on the calling thread,
+     * e.g. against a stand-in.
+     */
+    public Report replay() {
+        long start = System.nanoTime();
+        for (int i = 0; i < mLog.size(); i++) {
+            perform(i);
+        }
+        mReport.mElapsedMillis = (System.nanoTime() - start) / 1000000;
+        return mReport;
+    }
+
+    /**
+     * Replay the interactions on the handler's thread, so that frames are
+     * drawn between them.
+     *
+     * @param maxSpeed Whether to perform each interaction as soon as the
+     *        previous one is done, instead of at its recorded time.
+     * @param onDone Receives the report when the replay is done.
+     */
+    public void start(Handler handler, boolean maxSpeed, Runnable onDone) {
+        mMaxSpeed = maxSpeed;
+        mStartMillis = SystemClock.uptimeMillis();
+        mNext = 0;
+        resume(handler, mTarget, onDone);
+    }
+
+    /**
+     * Stop a replay started on a handler, e.g. when the target activity is
+     * destroyed. It can be resumed where it stopped.
+     */
+    public void stop() {
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mStep);
+            mHandler = null;
+        }
+    }
+
+    /**
+     * Resume a stopped replay, e.g. on the activity that was recreated after
+     * a configuration change. The recorded times still count from the start.
+     */
+    public void resume(Handler handler, Target target, Runnable onDone) {
+        stop();
+        mHandler = handler;
+        mTarget = target;
+        mOnDone = onDone;
+        handler.post(mStep);
+    }
+
+    /** Return true if all the interactions have been replayed. */
+    public boolean isDone() {
+        return mNext == mLog.size() && mHandler == null;
+    }
+
+    public Report getReport() {
+        return mReport;
+    }
+
+    private void perform(int index) {
+        int type = mLog.getType(index);
+        long start = System.nanoTime();
+        mTarget.perform(type, mLog.getArg1(index), mLog.getArg2(index), mReport);
+        mReport.add(type, System.nanoTime() - start);
+    }
+}
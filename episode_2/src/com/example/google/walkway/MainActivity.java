@@ -16,20 +16,34 @@
 
 package com.example.google.walkway;
 
+import com.example.google.walkway.model.FacetCounter;
 import com.example.google.walkway.model.Place;
 import com.example.google.walkway.model.Place.PlaceType;
+import com.example.google.walkway.model.PlaceCollation;
+import com.example.google.walkway.model.PlaceDetails;
+import com.example.google.walkway.model.PlaceStatus;
+import com.example.google.walkway.model.PlaceTypeRanges;
 import com.example.google.walkway.model.PlacesService;
+import com.example.google.walkway.model.ProximityEngine;
+import com.example.google.walkway.model.TrimmedPlaceGrid;
+import com.example.google.walkway.model.WalkingPath;
 import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.SupportMapFragment;
+import com.google.android.gms.maps.model.BitmapDescriptor;
 import com.google.android.gms.maps.model.BitmapDescriptorFactory;
 import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
+import com.google.android.gms.maps.model.Polyline;
+import com.google.android.gms.maps.model.PolylineOptions;
+import com.google.android.gms.maps.model.TileOverlay;
+import com.google.android.gms.maps.model.TileOverlayOptions;
 
 import android.annotation.SuppressLint;
+import android.app.ActivityManager;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.Configuration;
@@ -37,23 +51,32 @@ import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Point;
 import android.graphics.drawable.Drawable;
+import android.location.Location;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.support.v4.app.ActionBarDrawerToggle;
 import android.support.v4.app.FragmentManager;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v4.view.PagerAdapter;
 import android.support.v4.view.ViewPager;
 import android.support.v4.widget.DrawerLayout;
 import android.support.v7.app.ActionBarActivity;
+import android.support.v7.widget.SearchView;
 import android.util.Log;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
+import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
 import android.view.ViewTreeObserver;
 import android.view.ViewTreeObserver.OnGlobalLayoutListener;
+import android.view.ViewTreeObserver.OnPreDrawListener;
 import android.view.Window;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
@@ -61,11 +84,21 @@ import android.widget.CheckBox;
 import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.TextView;
+import android.widget.Toast;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MainActivity extends ActionBarActivity {
     /** Place types to display in the navigation drawer. */
@@ -84,11 +117,141 @@ public class MainActivity extends ActionBarActivity {
 
     private static final String LOG_TAG = MainActivity.class.getName();
     
+    /** The pedestrian street graph for walking times, in the app's files directory. */
+    private static final String STREET_GRAPH_FILE = "streets.wkg";
+    
+    /** The place photos (<place id>.jpg), in the app's files directory. */
+    private static final String THUMBNAIL_DIR = "thumbnails";
+    private static final long THUMBNAIL_DISK_CACHE_BYTES = 8 * 1024 * 1024;
+    
+    /** Place details are read from this directory in the app's files directory. */
+    private static final String DETAIL_DIR = "details";
+    
+    /**
+     * The startup milestones of every start, fresh or restored, in the app's
+     * files directory; to compare time-to-interactive across builds.
+     */
+    private static final String STARTUP_TIMES_FILE = "startup_times.txt";
+    
+    /** The frame metrics report, in the app's files directory. */
+    private static final String FRAME_METRICS_FILE = "frame_metrics.txt";
+    
+    /** How long to keep measuring frames after a tap or a closed drawer. */
+    private static final long FRAME_METRICS_TAIL_MS = 1000;
+    
+    /**
+     * Intent extras for performance regression runs: the name of a file in
+     * the app's files directory to record the interactions to, or to replay
+     * them from, and whether to replay at maximum speed.
+     */
+    public static final String EXTRA_RECORD_INTERACTIONS = "record_interactions";
+    public static final String EXTRA_REPLAY_INTERACTIONS = "replay_interactions";
+    public static final String EXTRA_REPLAY_MAX_SPEED = "replay_max_speed";
+    
+    /** The replay report, in the app's files directory. */
+    private static final String REPLAY_REPORT_FILE = "replay_report.txt";
+    
+    private static final int HEATMAP_TILE_SIZE = 256;
+    private static final int HEATMAP_CACHE_BYTES = 4 * 1024 * 1024;
+    
+    // Saved instance state keys.
+    private static final String STATE_SELECTED_PLACE_TYPES = "selected_place_types";
+    private static final String STATE_DISPLAYED_PLACE_TYPES = "displayed_place_types";
+    private static final String STATE_SELECTED_PLACE_INDEX = "selected_place_index";
+    private static final String STATE_CAMERA_POSITION = "camera_position";
+    private static final String STATE_MAP_INIT_POSITION = "map_init_position";
+    private static final String STATE_FOLLOWING = "following";
+    
     private TreeSet<Place.PlaceType> mSelectedPlaceTypes = new TreeSet<Place.PlaceType>();
     
+    /** The place types currently in mPlaces (and on the map). */
+    private TreeSet<Place.PlaceType> mDisplayedPlaceTypes = new TreeSet<Place.PlaceType>();
+    
     private GoogleMap mMap;
 
-    private Marker[] mMarkers;
+    /** The markers for mPlaces, in the same order. */
+    private ArrayList<Marker> mMarkers = new ArrayList<Marker>();
+    
+    /**
+     * The markers for mPlaces, by place id. Markers trimmed under memory
+     * pressure are null here and in mMarkers, until they are back in view.
+     */
+    private HashMap<String, Marker> mMarkersByPlaceId = new HashMap<String, Marker>();
+    
+    /** The latest live status of each place, by place id. */
+    private HashMap<String, PlaceStatus> mPlaceStatuses = new HashMap<String, PlaceStatus>();
+    
+    /** Reports when the walker reaches one of mPlaces. */
+    private ProximityEngine mProximityEngine;
+    
+    /** A brisk walking pace, in meters per second, for smoothing location fixes. */
+    private static final double WALKING_SPEED = 1.4;
+    
+    /** Keeps the camera on the walker while following. */
+    private CameraFollower mCameraFollower;
+    private boolean mFollowing = false;
+    
+    private final Handler mHandler = new Handler();
+    
+    /** Processes the location fixes received since the last batch. */
+    private final Runnable mProcessFixes = new Runnable() {
+        @Override
+        public void run() {
+            mProximityEngine.processFixes(new ProximityEngine.Listener() {
+                @Override
+                public void onPlaceEntered(Place place) {
+                    // Turn the pager to the place the walker has reached.
+                    int index = mPlaces.indexOf(place);
+                    Log.d(LOG_TAG, String.format("onPlaceEntered(%s): %d", place.name, index));
+                    if (index >= 0 && index != mSelectedPlaceIndex) {
+                        setSelectedPlace(index);
+                    }
+                }
+                
+                @Override
+                public void onPlaceExited(Place place) {
+                    Log.d(LOG_TAG, String.format("onPlaceExited(%s)", place.name));
+                }
+            });
+        }
+    };
+    
+    /** Density overlay shown instead of the markers when many places are visible. */
+    private TileOverlay mHeatmapOverlay;
+    private PlaceHeatmapTileProvider mHeatmapProvider;
+    
+    /** The mPlacesGeneration mHeatmapProvider is of, and the one being built. */
+    private int mHeatmapProviderGeneration = -1;
+    private int mHeatmapBuildGeneration = -1;
+    private boolean mHeatmapMode;
+    
+    /** Releases caches, bitmaps and markers when memory runs low. */
+    private MemoryTrimmer mMemoryTrimmer;
+    
+    /** A rough estimate of the memory a marker holds, in bytes, for trim reports. */
+    private static final int MARKER_BYTES = 1024;
+    
+    /** The cell size of mTrimmedPlaces, about a street-level viewport. */
+    private static final double TRIMMED_CELL_DEGREES = 0.01;
+    
+    /** The places whose markers in mMarkers were trimmed (are null), by cell. */
+    private final TrimmedPlaceGrid mTrimmedPlaces = new TrimmedPlaceGrid(TRIMMED_CELL_DEGREES);
+    
+    /** The walking path between consecutive places, in pager order. */
+    private WalkingPath mWalkingPath;
+    private Polyline mWalkingPathPolyline;
+    
+    /** The zoom level the walking path polyline was simplified for. */
+    private int mWalkingPathZoom = -1;
+    
+    /** Batches live status updates (e.g. from a push feed) to the UI thread. */
+    private PlaceStatusQueue mPlaceStatusQueue;
+    
+    /** Loads the place photos for the pager pages. */
+    private ThumbnailLoader mThumbnailLoader;
+    
+    /** Loads the place details for the pager pages, and prefetches their neighbours'. */
+    private PlaceDetailLoader mPlaceDetailLoader;
 
     /** The ViewPager for cycling through the list of places. */
     private ViewPager mPlaceViewPager;
@@ -99,25 +262,165 @@ public class MainActivity extends ActionBarActivity {
     private DrawerLayout mDrawerLayout;
     private ListView mPlaceListView;
     private ListView mNavListView;
+    
+    /** The number of places of each type in the viewport, by ordinal. */
+    private int[] mFacetCounts;
 
     private int mSelectedPlaceIndex = 0;
     
-    private List<Place> mPlaces;
+    /** The places on the map, grouped by type in type order. */
+    private ArrayList<Place> mPlaces = new ArrayList<Place>();
+    
+    /** Where the places of each type are in mPlaces (and mMarkers). */
+    private PlaceTypeRanges mPlaceTypeRanges = new PlaceTypeRanges(mPlaces);
+    
+    /**
+     * Incremented whenever the places in mPlaces change, so that what is
+     * built from a copy of them in the background is dropped if they changed
+     * again meanwhile.
+     */
+    private int mPlacesGeneration;
+    
+    /** The places shown in the place list; either mPlaces or search results. */
+    private ArrayList<Place> mPlaceListItems = new ArrayList<Place>();
+    
+    private boolean mPlaceListShowsSearchResults = false;
+    
+    /** The name order of the place list, or null until it is computed. */
+    private PlaceCollation mPlaceCollation;
+    private boolean mLoadingPlaceCollation;
     
     // XXX do not use (use getDotMarkerBitmap())
     private Bitmap mDotMarkerBitmap;
+    
+    // XXX do not use (use getClosedDotMarkerBitmap())
+    private Bitmap mClosedDotMarkerBitmap;
 
     private ActionBarDrawerToggle mDrawerToggle;
+    
+    /** Holds the query results across configuration changes. */
+    private PlacesStateFragment mStateFragment;
+    
+    /** The camera position to restore once the map has been laid out. */
+    private CameraPosition mRestoredCameraPosition;
+    
+    /** Startup milestones (time-to-first-frame, time-to-first-marker). */
+    private StartupTrace mStartupTrace;
+    
+    /** Frame times per interaction, written to FRAME_METRICS_FILE on pause. */
+    private FrameMetrics mFrameMetrics;
+    
+    /**
+     * The interactions recorded for EXTRA_RECORD_INTERACTIONS, or null. Kept
+     * by mStateFragment, so that a rotation doesn't start a new recording.
+     */
+    private InteractionLog mInteractionLog;
+    
+    /** The replay of EXTRA_REPLAY_INTERACTIONS, also kept by mStateFragment. */
+    private InteractionReplayer mReplayer;
+    private boolean mReplaying;
+    
+    /** Writes the report to REPLAY_REPORT_FILE when the replay is done. */
+    private final Runnable mReplayDone = new Runnable() {
+        @Override
+        public void run() {
+            mReplaying = false;
+            InteractionReplayer.Report report = mReplayer.getReport();
+            Log.i(LOG_TAG, "Replay done:\n" + report);
+            try {
+                Writer writer = new FileWriter(new File(getFilesDir(), REPLAY_REPORT_FILE));
+                try {
+                    writer.write(report.toString());
+                    writer.write(mFrameMetrics.toString());
+                } finally {
+                    writer.close();
+                }
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Could not write the replay report", e);
+            }
+        }
+    };
+    
+    /** Whether the user is dragging the pager, as opposed to it being set. */
+    private boolean mPagerDragging;
+    
+    /** Marker operations so far, for replay reports. */
+    private int mMarkersAdded;
+    private int mMarkersRemoved;
+    private int mMarkerIconsSet;
+    
+    /** Whether the places were restored rather than queried. */
+    private boolean mPlacesRestored = false;
+    
+    // The markers are added once both the places and the map are ready.
+    private boolean mPlacesLoaded = false;
+    private boolean mMapLaidOut = false;
+    
+    /**
+     * Whether the pager should only hold the pages up to the selected one;
+     * the rest are deferred until the UI thread is idle after startup.
+     */
+    private boolean mDeferOffscreenPages = true;
+    
+    /** The page count while the off-screen pages are deferred. */
+    private int mDeferredPageCount = 0;
 
     @SuppressLint("InlinedApi")
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mStartupTrace = new StartupTrace();
+        mStartupTrace.beginStage("MainActivity.onCreate");
+        mFrameMetrics = new FrameMetrics(getWindowManager().getDefaultDisplay().getRefreshRate());
+        
         supportRequestWindowFeature(Window.FEATURE_ACTION_BAR_OVERLAY);
         setContentView(R.layout.activity_main);
 
-        mSelectedPlaceTypes.addAll(Arrays.asList(NAV_PLACE_TYPES));
-        mPlaces = retrievePlaces();
+        FragmentManager fragmentManager = getSupportFragmentManager();
+        mStateFragment = (PlacesStateFragment) fragmentManager
+                .findFragmentByTag(PlacesStateFragment.TAG);
+        if (mStateFragment == null) {
+            mStateFragment = new PlacesStateFragment();
+            fragmentManager.beginTransaction().add(mStateFragment, PlacesStateFragment.TAG)
+                    .commit();
+        }
+        if (getIntent().hasExtra(EXTRA_RECORD_INTERACTIONS)) {
+            if (mStateFragment.mInteractionLog == null) {
+                mStateFragment.mInteractionLog = new InteractionLog();
+            }
+            mInteractionLog = mStateFragment.mInteractionLog;
+        }
+        
+        // Start loading the places first, so that the query runs in
+        // parallel with the map initialization.
+        if (savedInstanceState == null) {
+            mSelectedPlaceTypes.addAll(Arrays.asList(NAV_PLACE_TYPES));
+            loadPlaces();
+        } else {
+            restoreState(savedInstanceState);
+        }
+        loadPlaceCollation();
+        
+        int statusBudgetMs = getResources().getInteger(R.integer.place_status_budget_ms);
+        mPlaceStatusQueue = new PlaceStatusQueue(new PlaceStatusQueue.Listener() {
+            @Override
+            public void onPlaceStatusesChanged(List<PlaceStatus> statuses) {
+                updatePlaceStatuses(statuses);
+            }
+        }, statusBudgetMs);
+        
+        // Keep up to an eighth of the app's memory in thumbnails.
+        int memoryClass = ((ActivityManager) getSystemService(Context.ACTIVITY_SERVICE))
+                .getMemoryClass();
+        mThumbnailLoader = new ThumbnailLoader(getFilesDirUrl(THUMBNAIL_DIR),
+                new File(getCacheDir(), THUMBNAIL_DIR), THUMBNAIL_DISK_CACHE_BYTES,
+                memoryClass * 1024 * 1024 / 8,
+                getResources().getDimensionPixelSize(R.dimen.thumbnail_width),
+                getResources().getDimensionPixelSize(R.dimen.thumbnail_height));
+        mPlaceDetailLoader = new PlaceDetailLoader(getFilesDirUrl(DETAIL_DIR),
+                getResources().getInteger(R.integer.detail_cache_size),
+                getResources().getInteger(R.integer.detail_prefetch_distance));
+        setupMemoryTrimmer();
         
         setupMapIfNeeded();
 
@@ -133,34 +436,64 @@ public class MainActivity extends ActionBarActivity {
                 // getActionBar().setTitle(mTitle);
 
                 if (view.equals(mNavListView)) {
-                    // XXX no need to recreate the markers if the place
-                    // types haven't changed.
-                    mMap.clear();
-                    mPlaces = retrievePlaces();
-
-                    if (mPlaceViewPager != null) {
-                        mPlaceViewPager.getAdapter().notifyDataSetChanged();
-                        mPlaceViewPager.requestLayout();
-                    }
-
-                    addPlacesToMap();
-                    setSelectedPlace(0);
-                    showPlacesOnMap(true); // overrides animation from
-                                           // setSelectedPlace
-                    setupPlaceList();
+                    updateDisplayedPlaceTypes();
+                }
+                
+                // Include the frames that apply the new place types.
+                mFrameMetrics.track(FrameMetrics.DRAWER_CLOSE, FRAME_METRICS_TAIL_MS);
+                recordInteraction(InteractionLog.DRAWER_CLOSE, getDrawerId(view), 0);
+            }
+            
+            public void onDrawerStateChanged(int newState) {
+                super.onDrawerStateChanged(newState);
+                
+                // A drawer settling while open is closing.
+                if (newState == DrawerLayout.STATE_SETTLING
+                        && ((mNavListView != null && mDrawerLayout.isDrawerOpen(mNavListView))
+                        || (mPlaceListView != null && mDrawerLayout.isDrawerOpen(mPlaceListView)))) {
+                    mFrameMetrics.begin(FrameMetrics.DRAWER_CLOSE);
                 }
             }
 
             public void onDrawerOpened(View drawerView) {
                 // getActionBar().setTitle(mDrawerTitle);
+                recordInteraction(InteractionLog.DRAWER_OPEN, getDrawerId(drawerView), 0);
             }
         };
 
         mDrawerLayout.setDrawerListener(mDrawerToggle);
         
+        // Only the views on the first frame are set up now. The drawer lists
+        // and the off-screen pages are set up once the UI thread is idle.
         setupPlaceViewPager();
-        setupPlaceList();
-        setupNavList();
+        
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                mStartupTrace.beginStage("MainActivity.setupDeferredViews");
+                setupPlaceList();
+                setupNavList();
+                
+                mDeferOffscreenPages = false;
+                if (mPlaceViewPager != null) {
+                    mPlaceViewPager.getAdapter().notifyDataSetChanged();
+                    mPlaceViewPager.setCurrentItem(mSelectedPlaceIndex, false);
+                }
+                mStartupTrace.endStage();
+                mStartupTrace.mark("deferred_views");
+                
+                return false;
+            }
+        });
+        
+        mDrawerLayout.getViewTreeObserver().addOnPreDrawListener(new OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                mDrawerLayout.getViewTreeObserver().removeOnPreDrawListener(this);
+                mStartupTrace.mark(StartupTrace.FIRST_FRAME);
+                return true;
+            }
+        });
         
         // Set the map padding once the UI views have dimensions.
         ViewTreeObserver observer = mDrawerLayout.getViewTreeObserver();
@@ -195,9 +528,8 @@ public class MainActivity extends ActionBarActivity {
                 mMap.setPadding(0, actionbarHeight, placeListWidth, viewPagerHeight);
                 
                 // Once the map is ready, add the markers to it.
-                addPlacesToMap();
-                showPlacesOnMap(false);
-                setSelectedPlace(0);
+                mMapLaidOut = true;
+                showPlacesIfReady();
             }
 
             @SuppressWarnings("deprecation")
@@ -210,6 +542,50 @@ public class MainActivity extends ActionBarActivity {
                 }
             }
         });
+        
+        mStartupTrace.endStage();
+    }
+    
+    /**
+     * Add the markers and set up the camera, once both the places have been
+     * loaded and the map has been laid out.
+     */
+    private void showPlacesIfReady() {
+        if (!mPlacesLoaded || !mMapLaidOut) {
+            return;
+        }
+        
+        addPlacesToMap();
+        
+        if (mRestoredCameraPosition == null) {
+            if (!mPlaces.isEmpty()) {
+                showPlacesOnMap(false);
+                setSelectedPlace(0);
+            }
+        } else {
+            mMap.moveCamera(CameraUpdateFactory.newCameraPosition(mRestoredCameraPosition));
+            mRestoredCameraPosition = null;
+            
+            // Re-select the place without moving the restored camera.
+            int index = mSelectedPlaceIndex;
+            mSelectedPlaceIndex = 0;
+            if (index < mPlaces.size()) {
+                setSelectedPlace(index, false);
+            }
+        }
+        
+        mStartupTrace.mark(StartupTrace.FIRST_MARKER);
+        Log.i(LOG_TAG, String.format("Interactive after %dms (restored=%b)",
+                mStartupTrace.getMillis(StartupTrace.FIRST_MARKER), mPlacesRestored));
+        try {
+            File file = new File(getFilesDir(), STARTUP_TIMES_FILE);
+            mStartupTrace.appendTo(file, mPlacesRestored ? "restored" : "fresh");
+            Log.i(LOG_TAG, StartupTrace.summarize(file, StartupTrace.FIRST_MARKER));
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not write the startup times", e);
+        }
+        
+        startReplayIfRequested();
     }
 
     @Override
@@ -217,6 +593,179 @@ public class MainActivity extends ActionBarActivity {
         super.onResume();
         setupMapIfNeeded();
     }
+    
+    @Override
+    protected void onPause() {
+        super.onPause();
+        
+        // Automated runs pull the report and compare it with earlier builds.
+        for (String violation : mFrameMetrics.checkBudgets(
+                getResources().getInteger(R.integer.frame_budget_slow_percent) / 100f,
+                getResources().getInteger(R.integer.frame_budget_p90_ms))) {
+            Log.w(LOG_TAG, "Frame budget exceeded: " + violation);
+        }
+        try {
+            mFrameMetrics.writeReport(new File(getFilesDir(), FRAME_METRICS_FILE));
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not write the frame metrics", e);
+        }
+        
+        if (mInteractionLog != null) {
+            try {
+                mInteractionLog.write(new File(getFilesDir(),
+                        getIntent().getStringExtra(EXTRA_RECORD_INTERACTIONS)));
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Could not write the recorded interactions", e);
+            }
+        }
+        
+        Log.i(LOG_TAG, "Place details: " + mPlaceDetailLoader);
+        if (mCameraFollower != null) {
+            Log.i(LOG_TAG, "Camera follow: " + mCameraFollower);
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        
+        outState.putIntArray(STATE_SELECTED_PLACE_TYPES, toOrdinals(mSelectedPlaceTypes));
+        outState.putIntArray(STATE_DISPLAYED_PLACE_TYPES, toOrdinals(mDisplayedPlaceTypes));
+        outState.putInt(STATE_SELECTED_PLACE_INDEX, mSelectedPlaceIndex);
+        outState.putBoolean(STATE_FOLLOWING, mFollowing);
+        if (mMap != null) {
+            outState.putParcelable(STATE_CAMERA_POSITION, mMap.getCameraPosition());
+            outState.putParcelable(STATE_MAP_INIT_POSITION, mMapInitPosition);
+        }
+        
+        // The places themselves are only kept by the retained fragment. If the
+        // process dies, they're queried again.
+        mStateFragment.mPlaces = mPlaces;
+        mStateFragment.mPlaceStatuses = mPlaceStatuses;
+    }
+    
+    private void restoreState(Bundle savedInstanceState) {
+        // Restore the places that were displayed, re-querying them if they
+        // weren't retained.
+        fromOrdinals(savedInstanceState.getIntArray(STATE_DISPLAYED_PLACE_TYPES), mSelectedPlaceTypes);
+        if (mStateFragment.mPlaces != null) {
+            mPlaces = mStateFragment.mPlaces;
+            mPlaceTypeRanges = new PlaceTypeRanges(mPlaces);
+            if (mStateFragment.mPlaceStatuses != null) {
+                mPlaceStatuses = mStateFragment.mPlaceStatuses;
+            }
+            mDisplayedPlaceTypes.addAll(mSelectedPlaceTypes);
+            mPlacesLoaded = true;
+            mPlacesRestored = true;
+        } else {
+            loadPlaces();
+        }
+        
+        // The selection may have changed without being applied yet.
+        mSelectedPlaceTypes.clear();
+        fromOrdinals(savedInstanceState.getIntArray(STATE_SELECTED_PLACE_TYPES), mSelectedPlaceTypes);
+        
+        mSelectedPlaceIndex = savedInstanceState.getInt(STATE_SELECTED_PLACE_INDEX);
+        mFollowing = savedInstanceState.getBoolean(STATE_FOLLOWING);
+        mDeferredPageCount = Math.min(mPlaces.size(), mSelectedPlaceIndex + 1);
+        mRestoredCameraPosition = savedInstanceState.getParcelable(STATE_CAMERA_POSITION);
+        mMapInitPosition = savedInstanceState.getParcelable(STATE_MAP_INIT_POSITION);
+    }
+    
+    /**
+     * Return the file: URL of a directory in the app's files directory,
+     * ending in a slash so that file names can be appended.
+     */
+    private String getFilesDirUrl(String name) {
+        // toURI() only ends in a slash if the directory exists at the time.
+        String url = new File(getFilesDir(), name).toURI().toString();
+        return url.endsWith("/") ? url : url + "/";
+    }
+    
+    private static int[] toOrdinals(TreeSet<Place.PlaceType> placeTypes) {
+        int[] ordinals = new int[placeTypes.size()];
+        int i = 0;
+        for (Place.PlaceType placeType : placeTypes) {
+            ordinals[i++] = placeType.ordinal();
+        }
+        return ordinals;
+    }
+    
+    private static void fromOrdinals(int[] ordinals, TreeSet<Place.PlaceType> placeTypes) {
+        Place.PlaceType[] values = Place.PlaceType.values();
+        for (int ordinal : ordinals) {
+            placeTypes.add(values[ordinal]);
+        }
+    }
+
+    /**
+     * Register what to release at each tier of memory pressure. Everything
+     * released is rebuilt when next needed.
+     */
+    private void setupMemoryTrimmer() {
+        mMemoryTrimmer = new MemoryTrimmer();
+        mMemoryTrimmer.register(MemoryTrimmer.TIER_OFFSCREEN_MARKERS,
+                new MemoryTrimmer.Releasable() {
+                    @Override
+                    public long release() {
+                        return trimOffscreenMarkers();
+                    }
+                });
+        mMemoryTrimmer.register(MemoryTrimmer.TIER_VIEW_CACHES, new MemoryTrimmer.Releasable() {
+            @Override
+            public long release() {
+                long bytes = mThumbnailLoader.trimMemory() + mPlaceDetailLoader.trimMemory();
+                if (mHeatmapProvider != null) {
+                    bytes += mHeatmapProvider.trimMemory();
+                }
+                return bytes;
+            }
+        });
+        mMemoryTrimmer.register(MemoryTrimmer.TIER_ICON_BITMAPS, new MemoryTrimmer.Releasable() {
+            @Override
+            public long release() {
+                return releaseDotMarkerBitmaps();
+            }
+        });
+        mMemoryTrimmer.register(MemoryTrimmer.TIER_QUERY_CACHES, new MemoryTrimmer.Releasable() {
+            @Override
+            public long release() {
+                return PlacesService.trimCaches();
+            }
+        });
+    }
+    
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        long bytes = mMemoryTrimmer.onTrimMemory(level);
+        Log.i(LOG_TAG, String.format("onTrimMemory(%d): released %d bytes\n%s", level, bytes,
+                mMemoryTrimmer));
+    }
+    
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        long bytes = mMemoryTrimmer.onLowMemory();
+        Log.i(LOG_TAG, String.format("onLowMemory(): released %d bytes\n%s", bytes,
+                mMemoryTrimmer));
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mPlaceStatusQueue.close();
+        mThumbnailLoader.close();
+        mPlaceDetailLoader.close();
+        mHandler.removeCallbacks(mProcessFixes);
+        if (mReplayer != null) {
+            // The next instance resumes it, if there is one.
+            mReplayer.stop();
+        }
+        if (mCameraFollower != null) {
+            mCameraFollower.setEnabled(false);
+        }
+    }
 
     @Override
     protected void onPostCreate(Bundle savedInstanceState) {
@@ -230,14 +779,158 @@ public class MainActivity extends ActionBarActivity {
         mDrawerToggle.onConfigurationChanged(newConfig);
     }
 
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.main, menu);
+
+        MenuItem searchItem = menu.findItem(R.id.action_search);
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView(searchItem);
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextChange(String query) {
+                if (mPlaceListView == null) {
+                    return false; // Not set up yet.
+                } else if (query.length() == 0) {
+                    setPlaceListItems(mPlaces);
+                } else {
+                    setPlaceListItems(searchPlaces(query));
+                    openPlaceList();
+                }
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                List<Place> places = searchPlaces(query);
+                int index = places.isEmpty() ? -1 : indexOfPlace(places.get(0));
+                if (index >= 0) {
+                    mDrawerLayout.closeDrawers();
+                    setSelectedPlace(index);
+                }
+                return true;
+            }
+        });
+
+        MenuItemCompat.setOnActionExpandListener(searchItem,
+                new MenuItemCompat.OnActionExpandListener() {
+                    @Override
+                    public boolean onMenuItemActionExpand(MenuItem item) {
+                        return true;
+                    }
+
+                    @Override
+                    public boolean onMenuItemActionCollapse(MenuItem item) {
+                        // Restore the full list of places.
+                        if (mPlaceListView != null) {
+                            setPlaceListItems(mPlaces);
+                        }
+                        return true;
+                    }
+                });
+
+        menu.findItem(R.id.action_follow).setChecked(mFollowing);
+
+        return super.onCreateOptionsMenu(menu);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         if (mDrawerToggle.onOptionsItemSelected(item)) {
           return true;
         }
+        
+        if (item.getItemId() == R.id.action_walkable) {
+            showWalkablePlaces();
+            return true;
+        }
+        
+        if (item.getItemId() == R.id.action_open_now) {
+            showOpenPlaces();
+            return true;
+        }
+        
+        if (item.getItemId() == R.id.action_follow) {
+            mFollowing = !item.isChecked();
+            item.setChecked(mFollowing);
+            if (mCameraFollower != null) {
+                mCameraFollower.setEnabled(mFollowing);
+            }
+            return true;
+        }
 
         return super.onOptionsItemSelected(item);
     }
+    
+    /**
+     * Show the displayed places that are open now in the place list.
+     */
+    private void showOpenPlaces() {
+        if (mPlaceListView == null) {
+            return;
+        }
+        
+        final Place.PlaceType[] placeTypes = mDisplayedPlaceTypes.toArray(
+                new Place.PlaceType[mDisplayedPlaceTypes.size()]);
+        new AsyncTask<Void, Void, List<Place>>() {
+            @Override
+            protected List<Place> doInBackground(Void... params) {
+                return PlacesService.getOpenPlacesByType(Calendar.getInstance(), placeTypes);
+            }
+            
+            @Override
+            protected void onPostExecute(List<Place> places) {
+                setPlaceListItems(places);
+                openPlaceList();
+            }
+        }.execute();
+    }
+    
+    /**
+     * Show the places within a short walk of the selected place in the place
+     * list, nearest first.
+     */
+    private void showWalkablePlaces() {
+        if (mPlaceListView == null || mSelectedPlaceIndex >= mPlaces.size()) {
+            return;
+        }
+        
+        final Place origin = mPlaces.get(mSelectedPlaceIndex);
+        final int minutes = getResources().getInteger(R.integer.walkable_minutes);
+        final File graphFile = new File(getFilesDir(), STREET_GRAPH_FILE);
+        
+        new AsyncTask<Void, Void, List<Place>>() {
+            @Override
+            protected List<Place> doInBackground(Void... params) {
+                try {
+                    return PlacesService.getIsochroneEngine(graphFile)
+                            .getReachablePlaces(origin.lat, origin.lng, minutes);
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Could not load the street graph", e);
+                    return null;
+                }
+            }
+            
+            @Override
+            protected void onPostExecute(List<Place> places) {
+                if (places == null) {
+                    Toast.makeText(MainActivity.this, R.string.no_street_graph,
+                            Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                
+                // Only list the places that are on the map.
+                ArrayList<Place> displayedPlaces = new ArrayList<Place>();
+                for (Place place : places) {
+                    if (mDisplayedPlaceTypes.contains(place.type)) {
+                        displayedPlaces.add(place);
+                    }
+                }
+                
+                setPlaceListItems(displayedPlaces);
+                openPlaceList();
+            }
+        }.execute();
+    }
 
     
     @Override
@@ -270,23 +963,167 @@ public class MainActivity extends ActionBarActivity {
 
         mMap = mapFragment.getMap();
         mMap.getUiSettings().setZoomControlsEnabled(false);
+        mMap.setMyLocationEnabled(true);
+        
+        mCameraFollower = new CameraFollower(mMap, mHandler, WALKING_SPEED,
+                getResources().getDimensionPixelSize(R.dimen.follow_threshold),
+                getResources().getInteger(R.integer.follow_min_interval_ms),
+                getResources().getInteger(R.integer.follow_animation_ms),
+                getResources().getInteger(R.integer.follow_hold_off_ms));
+        mCameraFollower.setEnabled(mFollowing);
+        
+        // Fixes arrive at up to 10 Hz; process them in batches.
+        mMap.setOnMyLocationChangeListener(new GoogleMap.OnMyLocationChangeListener() {
+            @Override
+            public void onMyLocationChange(Location location) {
+                mCameraFollower.onLocationChanged(location);
+                if (mProximityEngine != null && mProximityEngine.addFix(location.getLatitude(),
+                        location.getLongitude())) {
+                    mHandler.postDelayed(mProcessFixes,
+                            getResources().getInteger(R.integer.proximity_batch_ms));
+                }
+            }
+        });
 
         mMap.setOnMarkerClickListener(new GoogleMap.OnMarkerClickListener() {
             @Override
             public boolean onMarkerClick(Marker marker) {
-                // This is a slow(ish) operation, but works for a few markers.
-                int index = Arrays.asList(mMarkers).indexOf(marker);
-
-                // If the currently selected place was re-selected, the show place details.
-                if (mSelectedPlaceIndex == index) {
-                    showPlaceDetails(index);
-                }
-                
-                setSelectedPlace(index);
+                mFrameMetrics.track(FrameMetrics.MARKER_TAP, FRAME_METRICS_TAIL_MS);
                 
+                // This is a slow(ish) operation, but works for a few markers.
+                int index = mMarkers.indexOf(marker);
+                recordInteraction(InteractionLog.MARKER_TAP, index, 0);
+                onMarkerTapped(index);
                 return true;
             }
         });
+        
+        mMap.setOnCameraChangeListener(new GoogleMap.OnCameraChangeListener() {
+            @Override
+            public void onCameraChange(CameraPosition position) {
+                // Only swap in a new level of detail when the zoom level changes.
+                if ((int) position.zoom != mWalkingPathZoom) {
+                    drawWalkingPath(position.zoom);
+                }
+                restoreTrimmedMarkers();
+                updateFacetCounts();
+            }
+        });
+    }
+
+    /**
+     * Count the places of each type in the viewport, and show the counts in
+     * the nav drawer if they changed. After a catalog update the counts of
+     * the previous version are shown until the counter has been rebuilt in
+     * the background; the counts are left as they are until there is one.
+     */
+    private void updateFacetCounts() {
+        FacetCounter counter = PlacesService.peekFacetCounter();
+        if (counter == null) {
+            return;
+        }
+        
+        LatLngBounds bounds = mMap.getProjection().getVisibleRegion().latLngBounds;
+        int[] counts = new int[PlaceType.values().length];
+        counter.count(bounds.southwest.latitude,
+                bounds.southwest.longitude, bounds.northeast.latitude,
+                bounds.northeast.longitude, counts);
+        
+        if (!Arrays.equals(counts, mFacetCounts)) {
+            mFacetCounts = counts;
+            if (mNavListView != null) {
+                ((ArrayAdapter<?>) mNavListView.getAdapter()).notifyDataSetChanged();
+            }
+        }
+        
+        int visiblePlaces = 0;
+        for (PlaceType type : mDisplayedPlaceTypes) {
+            visiblePlaces += counts[type.ordinal()];
+        }
+        updateRenderMode(visiblePlaces);
+    }
+    
+    /**
+     * Switch between markers and the heatmap depending on the number of
+     * places in the viewport. Switching back happens at a lower count, so
+     * that small camera moves near the threshold don't flip the mode.
+     */
+    private void updateRenderMode(int visiblePlaces) {
+        int threshold = getResources().getInteger(R.integer.heatmap_threshold);
+        boolean heatmapMode = mHeatmapMode
+                ? visiblePlaces > threshold * 3 / 4 : visiblePlaces > threshold;
+        if (heatmapMode == mHeatmapMode) {
+            return;
+        }
+        
+        Log.d(LOG_TAG, String.format("updateRenderMode(%d): heatmap %b", visiblePlaces,
+                heatmapMode));
+        mHeatmapMode = heatmapMode;
+        updateHeatmap();
+        
+        // Keep the selected place's marker, so the pager still has a target.
+        for (int i = 0; i < mMarkers.size(); i++) {
+            Marker marker = mMarkers.get(i);
+            if (marker != null) {
+                marker.setVisible(!heatmapMode || i == mSelectedPlaceIndex);
+            }
+        }
+    }
+    
+    /**
+     * Show the heatmap overlay of the current places, or remove it if the map
+     * isn't in heatmap mode. The provider is only rebuilt when the places
+     * have changed, on a background thread; the previous overlay stays up
+     * until the new one is ready.
+     */
+    private void updateHeatmap() {
+        if (!mHeatmapMode) {
+            if (mHeatmapOverlay != null) {
+                mHeatmapOverlay.remove();
+                mHeatmapOverlay = null;
+            }
+            return;
+        }
+        
+        if (mHeatmapProviderGeneration == mPlacesGeneration) {
+            if (mHeatmapOverlay == null) {
+                mHeatmapOverlay = mMap.addTileOverlay(
+                        new TileOverlayOptions().tileProvider(mHeatmapProvider));
+            }
+            return;
+        }
+        if (mHeatmapBuildGeneration == mPlacesGeneration) {
+            return; // Already being built.
+        }
+        
+        // The provider indexes its own copy of the places, in the background.
+        final List<Place> places = Arrays.asList(mPlaces.toArray(new Place[mPlaces.size()]));
+        final int generation = mPlacesGeneration;
+        final int radius = getResources().getInteger(R.integer.heatmap_radius);
+        mHeatmapBuildGeneration = generation;
+        new AsyncTask<Void, Void, PlaceHeatmapTileProvider>() {
+            @Override
+            protected PlaceHeatmapTileProvider doInBackground(Void... params) {
+                PlaceHeatmapTileProvider provider = new PlaceHeatmapTileProvider(places,
+                        HEATMAP_TILE_SIZE, radius, HEATMAP_CACHE_BYTES);
+                provider.prepare();
+                return provider;
+            }
+            
+            @Override
+            protected void onPostExecute(PlaceHeatmapTileProvider provider) {
+                if (generation != mPlacesGeneration) {
+                    return; // The places changed again.
+                }
+                mHeatmapProvider = provider;
+                mHeatmapProviderGeneration = generation;
+                if (mHeatmapOverlay != null) {
+                    mHeatmapOverlay.remove();
+                    mHeatmapOverlay = null;
+                }
+                updateHeatmap();
+            }
+        }.execute();
     }
 
     private void setupPlaceViewPager() {
@@ -306,11 +1143,27 @@ public class MainActivity extends ActionBarActivity {
             // When a new page is displayed, change the highlighted marker.
             @Override
             public void onPageSelected(int index) {
+                if (mPagerDragging) {
+                    recordInteraction(InteractionLog.PAGE_SWIPE, index, 0);
+                }
                 setSelectedPlace(index);
             }
 
             @Override
             public void onPageScrollStateChanged(int state) {
+                if (state == ViewPager.SCROLL_STATE_IDLE) {
+                    mFrameMetrics.end(FrameMetrics.PAGER_SWIPE);
+                    
+                    // Settled, so get the pages the user may swipe to next.
+                    mPlaceDetailLoader.prefetch(mPlaces, mPlaceViewPager.getCurrentItem());
+                } else {
+                    mFrameMetrics.begin(FrameMetrics.PAGER_SWIPE);
+                }
+                if (state == ViewPager.SCROLL_STATE_DRAGGING) {
+                    mPagerDragging = true;
+                } else if (state == ViewPager.SCROLL_STATE_IDLE) {
+                    mPagerDragging = false;
+                }
             }
 
             @Override
@@ -324,20 +1177,24 @@ public class MainActivity extends ActionBarActivity {
         
         mPlaceListView = (ListView) this.findViewById(R.id.place_list);
         ArrayAdapter<Place> placeAdapter = new PlaceArrayAdapter<Place>(this,
-                R.layout.listview_item);
+                R.layout.listview_item, mPlaceListItems);
         mPlaceListView.setAdapter(placeAdapter);
 
-        for (Place place : mPlaces) {
-            placeAdapter.add(place);
-        }
+        setPlaceListItems(mPlaces);
 
         mPlaceListView.setOnItemClickListener(new ListView.OnItemClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> parent, View view, int index, long id) {
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
                 // cannot use closeDrawer(mPlaceListView) since the list might not be a drawer.
                 mDrawerLayout.closeDrawers();
                 
-                if (index == mSelectedPlaceIndex) {
+                // The list may be showing search results, so map the row back
+                // to its place.
+                int index = indexOfPlace((Place) parent.getItemAtPosition(position));
+                
+                if (index < 0) {
+                    return;
+                } else if (index == mSelectedPlaceIndex) {
                     showPlaceDetails(index);
                 } else {
                     setSelectedPlace(index);
@@ -356,6 +1213,66 @@ public class MainActivity extends ActionBarActivity {
         }
     }
     
+    /**
+     * Open the place list drawer. On large screens the list isn't a drawer,
+     * and is always shown.
+     */
+    private void openPlaceList() {
+        if (mPlaceListView.getParent() == mDrawerLayout) {
+            mDrawerLayout.openDrawer(mPlaceListView);
+        }
+    }
+    
+    /**
+     * Replace the contents of the place list, e.g. with search results.
+     */
+    @SuppressWarnings("unchecked")
+    private void setPlaceListItems(List<Place> places) {
+        ArrayAdapter<Place> placeAdapter = (ArrayAdapter<Place>) mPlaceListView.getAdapter();
+        placeAdapter.setNotifyOnChange(false);
+        placeAdapter.clear();
+        
+        // The displayed places are listed by name; other lists, e.g. search
+        // results, keep their own order.
+        List<Place> items = places;
+        if (places == mPlaces && mPlaceCollation != null) {
+            items = mPlaceCollation.sort(places);
+            updatePlaceCollationIfStale();
+        }
+        for (Place place : items) {
+            placeAdapter.add(place);
+        }
+        placeAdapter.notifyDataSetChanged();
+        
+        mPlaceListShowsSearchResults = places != mPlaces;
+    }
+    
+    /** Search the places of the displayed types, i.e. the ones on the map. */
+    private List<Place> searchPlaces(String query) {
+        int limit = getResources().getInteger(R.integer.search_result_limit);
+        Place.PlaceType[] placeTypes = mDisplayedPlaceTypes.toArray(new Place.PlaceType[mDisplayedPlaceTypes.size()]);
+        return PlacesService.searchPlaces(query, limit, placeTypes);
+    }
+    
+    /**
+     * Return the index in mPlaces of the place with the same id, or -1 if
+     * there isn't one. Search results may be the Place objects of another
+     * catalog snapshot, so they're matched by id, within their type's block.
+     */
+    private int indexOfPlace(Place place) {
+        if (mPlaceTypeRanges == null) {
+            return -1;
+        }
+        int start = mPlaceTypeRanges.getStart(place.type);
+        int end = start + mPlaceTypeRanges.getCount(place.type);
+        for (int i = start; i < end; i++) {
+            if (mPlaces.get(i).id.equals(place.id)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
     private void setupNavList() {
         Log.d(LOG_TAG, "setupNavList()");
         
@@ -391,6 +1308,19 @@ public class MainActivity extends ActionBarActivity {
         });
     }
     
+    /**
+     * Select the place of a tapped marker, showing its details if it was
+     * already selected.
+     */
+    private void onMarkerTapped(int index) {
+        // If the currently selected place was re-selected, the show place details.
+        if (mSelectedPlaceIndex == index) {
+            showPlaceDetails(index);
+        }
+        
+        setSelectedPlace(index);
+    }
+    
     /**
      * Show place details and street-level map for place.
      * 
@@ -408,15 +1338,53 @@ public class MainActivity extends ActionBarActivity {
         
         CameraPosition pos = CameraPosition.builder().tilt(tilt).target(latlng).zoom(zoomLevel)
                 .build();
-        mMap.animateCamera(CameraUpdateFactory.newCameraPosition(pos), zoomTime, null);
+        mFrameMetrics.begin(FrameMetrics.CAMERA_ANIMATION);
+        holdOffCameraFollow();
+        mMap.animateCamera(CameraUpdateFactory.newCameraPosition(pos), zoomTime,
+                new GoogleMap.CancelableCallback() {
+                    @Override
+                    public void onFinish() {
+                        mFrameMetrics.end(FrameMetrics.CAMERA_ANIMATION);
+                    }
+                    
+                    @Override
+                    public void onCancel() {
+                        mFrameMetrics.end(FrameMetrics.CAMERA_ANIMATION);
+                    }
+                });
+    }
+    
+    private String formatPlaceDetails(PlaceDetails details) {
+        if (details == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        if (!Float.isNaN(details.rating)) {
+            sb.append(getString(R.string.place_rating, details.rating, details.reviewCount));
+        }
+        if (details.description != null) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(details.description);
+        }
+        return sb.toString();
     }
     
     private void setSelectedPlace(int index) {
+        setSelectedPlace(index, true);
+    }
+    
+    /**
+     * @param recenter Whether to animate the camera to the place if it isn't
+     *        near the middle of the map.
+     */
+    private void setSelectedPlace(int index, boolean recenter) {
         Log.d(LOG_TAG, String.format("showSelectedPlace(%d)", index));
         
         // Toggle the selected place in the listview.
-        mPlaceListView.getChildAt(mSelectedPlaceIndex).setSelected(false);
-        mPlaceListView.getChildAt(index).setSelected(true);
+        setPlaceListRowSelected(mSelectedPlaceIndex, false);
+        setPlaceListRowSelected(index, true);
         
         if (mPlaceViewPager != null) {
             mPlaceViewPager.setCurrentItem(index);
@@ -425,17 +1393,26 @@ public class MainActivity extends ActionBarActivity {
         // TODO reset the map zoom if details previously displayed
         
         // Set the non-selected place markers to a dots.
-        mMarkers[mSelectedPlaceIndex].setIcon(BitmapDescriptorFactory
-                .fromBitmap(getDotMarkerBitmap()));
-        mMarkers[mSelectedPlaceIndex].setAnchor(.5f, .5f);
+        if (mSelectedPlaceIndex < mMarkers.size() && mMarkers.get(mSelectedPlaceIndex) != null) {
+            Marker marker = mMarkers.get(mSelectedPlaceIndex);
+            Bitmap dotBitmap = isPlaceClosed(mPlaces.get(mSelectedPlaceIndex))
+                    ? getClosedDotMarkerBitmap() : getDotMarkerBitmap();
+            marker.setIcon(BitmapDescriptorFactory.fromBitmap(dotBitmap));
+            mMarkerIconsSet++;
+            marker.setAnchor(.5f, .5f);
+            marker.setVisible(!mHeatmapMode);
+        }
         
         // Replace the currently selected maker with the full marker.
         float hue = this.getResources().getInteger(R.integer.place_marker_hue);
-        mMarkers[index].setIcon(BitmapDescriptorFactory.defaultMarker(hue));
-        mMarkers[index].setAnchor(.5f, 1f);
+        Marker marker = getMarker(index);
+        marker.setIcon(BitmapDescriptorFactory.defaultMarker(hue));
+        mMarkerIconsSet++;
+        marker.setAnchor(.5f, 1f);
+        marker.setVisible(true);
         
         // Determine if the marker is in the middle 80% of the map view.
-        LatLng coords = mMarkers[index].getPosition();
+        LatLng coords = marker.getPosition();
         Point point = mMap.getProjection().toScreenLocation(coords);
         
         View view = ((SupportMapFragment) getSupportFragmentManager().findFragmentById(R.id.map)).getView();
@@ -462,62 +1439,643 @@ public class MainActivity extends ActionBarActivity {
         int height = view.getHeight() - viewPagerHeight - actionbarHeight;
         point.y -= actionbarHeight;
         
-        if (point.x < .2 * width || point.x > .8 * width || point.y < .2 * height
-                || point.y > .8 * height) {
+        if (recenter && (point.x < .2 * width || point.x > .8 * width || point.y < .2 * height
+                || point.y > .8 * height)) {
             int recenterTime = getResources().getInteger(R.integer.map_recenter_ms);
+            holdOffCameraFollow();
             mMap.animateCamera(CameraUpdateFactory.newLatLng(coords), recenterTime, null);
         }
               
         mSelectedPlaceIndex = index;
     }
     
+    /**
+     * Toggle the selection state of a place's row in the place list, if the row
+     * is on screen. The list order may differ from mPlaces (e.g. search results).
+     */
+    @SuppressWarnings("unchecked")
+    private void setPlaceListRowSelected(int index, boolean selected) {
+        if (mPlaceListView == null || index < 0 || index >= mPlaces.size()) {
+            return;
+        }
+        
+        ArrayAdapter<Place> placeAdapter = (ArrayAdapter<Place>) mPlaceListView.getAdapter();
+        int position = placeAdapter.getPosition(mPlaces.get(index));
+        View rowView = mPlaceListView.getChildAt(position - mPlaceListView.getFirstVisiblePosition());
+        if (position >= 0 && rowView != null) {
+            rowView.setSelected(selected);
+        }
+    }
+    
     public void onPlaceTypeSelected(View view) {
         // Get the index of the row that contains the checkbox.
 //        int index = mNavListView.getSelectedItemPosition();
-        int index = mNavListView.indexOfChild((View) view.getParent());
-        Place.PlaceType placeType = Place.PlaceType.values()[index];
+        int index = mNavListView.getPositionForView(view);
+        Place.PlaceType placeType = NAV_PLACE_TYPES[index];
         
         if (((CheckBox) view).isChecked()) {
             mSelectedPlaceTypes.add(placeType);
         } else {
             mSelectedPlaceTypes.remove(placeType);
         }
+        recordInteraction(InteractionLog.PLACE_TYPE, placeType.ordinal(),
+                ((CheckBox) view).isChecked() ? 1 : 0);
+    }
+    
+    private void recordInteraction(int type, int arg1, int arg2) {
+        if (mInteractionLog != null && !mReplaying) {
+            mInteractionLog.record(type, arg1, arg2);
+        }
+    }
+    
+    private int getDrawerId(View drawerView) {
+        return drawerView == mNavListView ? InteractionLog.DRAWER_NAV : InteractionLog.DRAWER_PLACES;
+    }
+    
+    /**
+     * Replay the interactions in EXTRA_REPLAY_INTERACTIONS, if set, and write
+     * the report to REPLAY_REPORT_FILE.
+     */
+    private void startReplayIfRequested() {
+        String fileName = getIntent().getStringExtra(EXTRA_REPLAY_INTERACTIONS);
+        if (fileName == null || mReplaying) {
+            return;
+        }
+        
+        // Go on with the replay of the previous instance, if it was recreated.
+        mReplayer = mStateFragment.mReplayer;
+        if (mReplayer != null) {
+            if (!mReplayer.isDone()) {
+                mReplaying = true;
+                mReplayer.resume(mHandler, new ReplayTarget(), mReplayDone);
+            }
+            return;
+        }
+        
+        InteractionLog log;
+        try {
+            log = InteractionLog.read(new File(getFilesDir(), fileName));
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not read the interactions to replay", e);
+            return;
+        }
+        
+        mReplaying = true;
+        mReplayer = new InteractionReplayer(log, new ReplayTarget());
+        mStateFragment.mReplayer = mReplayer;
+        mReplayer.start(mHandler, getIntent().getBooleanExtra(EXTRA_REPLAY_MAX_SPEED, false),
+                mReplayDone);
+    }
+    
+    /** Performs recorded interactions on this activity. */
+    private class ReplayTarget implements InteractionReplayer.Target {
+        @Override
+        public void perform(int type, int arg1, int arg2, InteractionReplayer.Report report) {
+            int markersAdded = mMarkersAdded;
+            int markersRemoved = mMarkersRemoved;
+            int markerIconsSet = mMarkerIconsSet;
+            View drawerView = arg1 == InteractionLog.DRAWER_NAV ? mNavListView : mPlaceListView;
+            
+            switch (type) {
+                case InteractionLog.DRAWER_OPEN:
+                    if (drawerView == mPlaceListView) {
+                        openPlaceList();
+                    } else if (drawerView != null) {
+                        mDrawerLayout.openDrawer(drawerView);
+                    }
+                    break;
+                case InteractionLog.DRAWER_CLOSE:
+                    // The place list might not be a drawer.
+                    if (drawerView != null && drawerView.getParent() == mDrawerLayout) {
+                        mDrawerLayout.closeDrawer(drawerView);
+                    }
+                    // Apply the place types now rather than after the
+                    // animation, so that the replay is deterministic.
+                    if (arg1 == InteractionLog.DRAWER_NAV) {
+                        updateDisplayedPlaceTypes();
+                    }
+                    break;
+                case InteractionLog.PLACE_TYPE:
+                    Place.PlaceType placeType = Place.PlaceType.values()[arg1];
+                    if (arg2 != 0) {
+                        mSelectedPlaceTypes.add(placeType);
+                    } else {
+                        mSelectedPlaceTypes.remove(placeType);
+                    }
+                    if (mNavListView != null) {
+                        ((ArrayAdapter<?>) mNavListView.getAdapter()).notifyDataSetChanged();
+                    }
+                    break;
+                case InteractionLog.MARKER_TAP:
+                    if (arg1 >= 0 && arg1 < mPlaces.size()) {
+                        onMarkerTapped(arg1);
+                    }
+                    break;
+                case InteractionLog.PAGE_SWIPE:
+                    if (arg1 >= 0 && arg1 < mPlaces.size()) {
+                        setSelectedPlace(arg1);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            
+            report.count("markers_added", mMarkersAdded - markersAdded);
+            report.count("markers_removed", mMarkersRemoved - markersRemoved);
+            report.count("marker_icons_set", mMarkerIconsSet - markerIconsSet);
+        }
+    }
+    
+    /**
+     * Compute the name order of the places on a background thread, then list
+     * the places in that order.
+     */
+    private void loadPlaceCollation() {
+        if (mLoadingPlaceCollation) {
+            return;
+        }
+        mLoadingPlaceCollation = true;
+        final Locale locale = Locale.getDefault();
+        new AsyncTask<Void, Void, PlaceCollation>() {
+            @Override
+            protected PlaceCollation doInBackground(Void... params) {
+                ExecutorService executor = Executors.newFixedThreadPool(
+                        Runtime.getRuntime().availableProcessors());
+                try {
+                    return PlacesService.getCollation(locale, executor);
+                } catch (InterruptedException e) {
+                    return null;
+                } finally {
+                    executor.shutdown();
+                }
+            }
+            
+            @Override
+            protected void onPostExecute(PlaceCollation collation) {
+                mLoadingPlaceCollation = false;
+                if (collation == null) {
+                    return;
+                }
+                Log.d(LOG_TAG, collation.toString());
+                mPlaceCollation = collation;
+                if (mPlaceListView != null && !mPlaceListShowsSearchResults) {
+                    setPlaceListItems(mPlaces);
+                }
+            }
+        }.execute();
+    }
+    
+    /**
+     * Update the name order in the background if the catalog has changed
+     * since it was computed. Until then places added since go last.
+     */
+    private void updatePlaceCollationIfStale() {
+        if (mPlaceCollation.getVersion() != PlacesService.getCatalog().getSnapshot().version) {
+            loadPlaceCollation();
+        }
+    }
+    
+    /**
+     * Query the places of the selected types on a background thread.
+     */
+    private void loadPlaces() {
+        mDisplayedPlaceTypes.clear();
+        mDisplayedPlaceTypes.addAll(mSelectedPlaceTypes);
+        
+        final Place.PlaceType[] placeTypes = mSelectedPlaceTypes.toArray(new Place.PlaceType[mSelectedPlaceTypes.size()]); 
+        new AsyncTask<Void, Void, List<Place>>() {
+            @Override
+            protected List<Place> doInBackground(Void... params) {
+                List<Place> places = PlacesService.getPlacesByType(placeTypes);
+                
+                // Build the facet counts and the search index now rather than
+                // on the first camera change and keystroke.
+                PlacesService.getFacetCounter();
+                PlacesService.getSearchIndex();
+                return places;
+            }
+            
+            @Override
+            protected void onPostExecute(List<Place> places) {
+                onPlacesLoaded(places);
+            }
+        }.execute();
+    }
+    
+    private void onPlacesLoaded(List<Place> places) {
+        mStartupTrace.mark("places_loaded");
+        
+        mPlaces.addAll(places);
+        mPlaceTypeRanges = new PlaceTypeRanges(mPlaces);
+        mPlacesLoaded = true;
+        mDeferredPageCount = Math.min(mPlaces.size(), 1);
+        
+        if (mPlaceViewPager != null) {
+            mPlaceViewPager.getAdapter().notifyDataSetChanged();
+        }
+        if (mPlaceListView != null) {
+            setPlaceListItems(mPlaces);
+        }
+        
+        showPlacesIfReady();
     }
     
-    private List<Place> retrievePlaces() {
-        Place.PlaceType[] placeTypes = mSelectedPlaceTypes.toArray(new Place.PlaceType[mSelectedPlaceTypes.size()]); 
-        return PlacesService.getPlacesByType(placeTypes);
+    /**
+     * Bring the map, place list and pager in line with the selected place
+     * types. Only the places of the types that were added or removed are
+     * touched, as blocks of mPlaces; the remaining markers and the selected
+     * place are left as is.
+     */
+    private void updateDisplayedPlaceTypes() {
+        if (!mPlacesLoaded) {
+            return; // The delta is applied the next time the drawer closes.
+        }
+        
+        TreeSet<Place.PlaceType> addedTypes = new TreeSet<Place.PlaceType>(mSelectedPlaceTypes);
+        addedTypes.removeAll(mDisplayedPlaceTypes);
+        
+        TreeSet<Place.PlaceType> removedTypes = new TreeSet<Place.PlaceType>(mDisplayedPlaceTypes);
+        removedTypes.removeAll(mSelectedPlaceTypes);
+        
+        if (addedTypes.isEmpty() && removedTypes.isEmpty()) {
+            return;
+        }
+        
+        Log.d(LOG_TAG, String.format("updateDisplayedPlaceTypes(+%s, -%s)", addedTypes, removedTypes));
+        
+        PlaceTypeRanges rangesBefore = mPlaceTypeRanges.copy();
+        Place.PlaceType selectedType = mSelectedPlaceIndex < mPlaces.size()
+                ? mPlaces.get(mSelectedPlaceIndex).type : null;
+        
+        // Cut out the blocks of the deselected types, with their markers.
+        int removedCount = 0;
+        for (Place.PlaceType type : removedTypes) {
+            int start = mPlaceTypeRanges.getStart(type);
+            int end = start + mPlaceTypeRanges.getCount(type);
+            removedCount += end - start;
+            for (int i = start; i < end; i++) {
+                Marker marker = mMarkers.get(i);
+                if (marker != null) {
+                    marker.remove();
+                }
+                mMarkersByPlaceId.remove(mPlaces.get(i).id);
+                mMarkersRemoved++;
+            }
+            mPlaces.subList(start, end).clear();
+            mMarkers.subList(start, end).clear();
+            mTrimmedPlaces.removeType(type);
+            mPlaceTypeRanges.setCount(type, 0);
+        }
+        
+        // Splice in the blocks of the selected types.
+        List<Place> addedPlaces = new ArrayList<Place>();
+        for (Place.PlaceType type : addedTypes) {
+            List<Place> places = PlacesService.getPlacesByType(type);
+            int start = mPlaceTypeRanges.getStart(type);
+            mPlaces.addAll(start, places);
+            addMarkers(start, places);
+            mPlaceTypeRanges.setCount(type, places.size());
+            addedPlaces.addAll(places);
+        }
+        
+        mDisplayedPlaceTypes.clear();
+        mDisplayedPlaceTypes.addAll(mSelectedPlaceTypes);
+        
+        // Types without places don't change the pager order.
+        if (removedCount > 0 || !addedPlaces.isEmpty()) {
+            mPlacesGeneration++;
+            updateWalkingPath();
+            updateHeatmap();
+            updateProximityEngine();
+        }
+        
+        // Apply the same delta to the place list, unless it's showing search
+        // results.
+        if (!mPlaceListShowsSearchResults) {
+            if (!removedTypes.isEmpty()) {
+                int j = 0;
+                for (int i = 0; i < mPlaceListItems.size(); i++) {
+                    Place place = mPlaceListItems.get(i);
+                    if (!removedTypes.contains(place.type)) {
+                        mPlaceListItems.set(j++, place);
+                    }
+                }
+                mPlaceListItems.subList(j, mPlaceListItems.size()).clear();
+            }
+            if (mPlaceCollation != null) {
+                mPlaceCollation.merge(mPlaceListItems, addedPlaces);
+                updatePlaceCollationIfStale();
+            } else {
+                mPlaceListItems.addAll(addedPlaces);
+            }
+            ((ArrayAdapter<?>) mPlaceListView.getAdapter()).notifyDataSetChanged();
+        }
+        
+        if (mPlaceViewPager != null) {
+            mPlaceViewPager.getAdapter().notifyDataSetChanged();
+        }
+        
+        int index = selectedType == null ? -1
+                : mPlaceTypeRanges.mapIndex(rangesBefore, mSelectedPlaceIndex, selectedType);
+        if (index >= 0) {
+            // The selected place survived; just follow its new position.
+            mSelectedPlaceIndex = index;
+            if (mPlaceViewPager != null) {
+                mPlaceViewPager.setCurrentItem(index, false);
+            }
+        } else if (!mPlaces.isEmpty()) {
+            mSelectedPlaceIndex = 0;
+            setSelectedPlace(0);
+            showPlacesOnMap(true); // overrides animation from setSelectedPlace
+        }
+        
+        // The number of visible places changed with the types.
+        updateFacetCounts();
     }
     
     private void addPlacesToMap() {
         Log.d(LOG_TAG, "addPlacesToMap()");
         
-        int i = 0;
-        mMarkers = new Marker[mPlaces.size()];
-
-        // Create the a marker for each of the places.
-        for (Place place : mPlaces) {
-            LatLng point = new LatLng(place.lat, place.lng);
-            Marker marker = mMap.addMarker(new MarkerOptions()
-                    .position(point)
-                    .anchor(.5f, .5f)
-                    .icon(BitmapDescriptorFactory.fromBitmap(getDotMarkerBitmap())));
+        mMarkers.clear();
+        mMarkersByPlaceId.clear();
+        mTrimmedPlaces.clear();
+        addMarkers(0, mPlaces);
+        
+        mPlacesGeneration++;
+        updateWalkingPath();
+        updateHeatmap();
+        updateProximityEngine();
+    }
+    
+    /**
+     * Rebuild the proximity engine over mPlaces on a background thread, then
+     * swap it in. The previous engine keeps taking fixes until then; the
+     * places the walker is in and the pending fixes carry over, so
+     * mProcessFixes, if it's posted, processes them with the new engine and
+     * the walker's place isn't entered again.
+     */
+    private void updateProximityEngine() {
+        final List<Place> places = Arrays.asList(mPlaces.toArray(new Place[mPlaces.size()]));
+        final int generation = mPlacesGeneration;
+        final int enterMeters = getResources().getInteger(R.integer.proximity_enter_meters);
+        final int exitMeters = getResources().getInteger(R.integer.proximity_exit_meters);
+        new AsyncTask<Void, Void, ProximityEngine>() {
+            @Override
+            protected ProximityEngine doInBackground(Void... params) {
+                return new ProximityEngine(places, enterMeters, exitMeters);
+            }
+            
+            @Override
+            protected void onPostExecute(ProximityEngine engine) {
+                if (generation != mPlacesGeneration) {
+                    return; // The places changed again; a newer engine is coming.
+                }
+                if (mProximityEngine != null) {
+                    engine.carryOver(mProximityEngine);
+                }
+                mProximityEngine = engine;
+            }
+        }.execute();
+    }
+    
+    /**
+     * Rebuild the walking path through mPlaces on a background thread, then
+     * draw it at the current zoom. The previous path stays up until then.
+     */
+    private void updateWalkingPath() {
+        // Only the references are copied here; the simplification, which
+        // can be quadratic, runs in the background.
+        final Place[] places = mPlaces.toArray(new Place[mPlaces.size()]);
+        final int generation = mPlacesGeneration;
+        
+        // Map tiles are scaled by density, so the tolerance is in dp.
+        final float pixelTolerance = getResources().getDimension(R.dimen.walking_path_tolerance)
+                / getResources().getDisplayMetrics().density;
+        new AsyncTask<Void, Void, WalkingPath>() {
+            @Override
+            protected WalkingPath doInBackground(Void... params) {
+                // XXX straight segments until we have street-level path geometry.
+                double[] lats = new double[places.length];
+                double[] lngs = new double[places.length];
+                for (int i = 0; i < places.length; i++) {
+                    lats[i] = places[i].lat;
+                    lngs[i] = places[i].lng;
+                }
+                return new WalkingPath(lats, lngs, places.length, pixelTolerance);
+            }
+            
+            @Override
+            protected void onPostExecute(WalkingPath path) {
+                if (generation != mPlacesGeneration || mMap == null) {
+                    return; // The places changed again; a newer path is coming.
+                }
+                mWalkingPath = path;
+                drawWalkingPath(mMap.getCameraPosition().zoom);
+            }
+        }.execute();
+    }
+    
+    /**
+     * Show the level of detail of the walking path for the zoom level.
+     */
+    private void drawWalkingPath(float zoom) {
+        if (mWalkingPath == null) {
+            return;
+        }
+        
+        int count = mWalkingPath.getVertexCount(zoom);
+        ArrayList<LatLng> points = new ArrayList<LatLng>(count);
+        for (int n = 0; n < count; n++) {
+            int i = mWalkingPath.getVertexIndex(zoom, n);
+            points.add(new LatLng(mWalkingPath.getLat(i), mWalkingPath.getLng(i)));
+        }
+        
+        if (mWalkingPathPolyline == null) {
+            mWalkingPathPolyline = mMap.addPolyline(new PolylineOptions()
+                    .addAll(points)
+                    .color(getResources().getColor(R.color.walking_path))
+                    .width(getResources().getDimension(R.dimen.walking_path_width)));
+        } else {
+            mWalkingPathPolyline.setPoints(points);
+        }
+        
+        mWalkingPathZoom = (int) zoom;
+    }
+    
+    /**
+     * Create a (dot) marker for each of the places, inserting them into
+     * mMarkers at a position.
+     */
+    private void addMarkers(int position, List<Place> places) {
+        ArrayList<Marker> markers = new ArrayList<Marker>(places.size());
+        BitmapDescriptor dotIcon = BitmapDescriptorFactory.fromBitmap(getDotMarkerBitmap());
+        BitmapDescriptor closedDotIcon = null;
+        
+        for (Place place : places) {
+            BitmapDescriptor icon = dotIcon;
+            if (isPlaceClosed(place)) {
+                if (closedDotIcon == null) {
+                    closedDotIcon = BitmapDescriptorFactory.fromBitmap(getClosedDotMarkerBitmap());
+                }
+                icon = closedDotIcon;
+            }
+            
+            Marker marker = newDotMarker(place, icon);
+            markers.add(marker);
+            mMarkersByPlaceId.put(place.id, marker);
+            mMarkersAdded++;
+        }
+        mMarkers.addAll(position, markers);
+    }
+    
+    private Marker newDotMarker(Place place, BitmapDescriptor icon) {
+        return mMap.addMarker(new MarkerOptions()
+                .position(new LatLng(place.lat, place.lng))
+                .anchor(.5f, .5f)
+                .icon(icon)
+                .visible(!mHeatmapMode));
+    }
+    
+    /**
+     * Return the marker of a place, re-creating it if it was trimmed.
+     */
+    private Marker getMarker(int index) {
+        Marker marker = mMarkers.get(index);
+        if (marker == null) {
+            Place place = mPlaces.get(index);
+            Bitmap dotBitmap = isPlaceClosed(place)
+                    ? getClosedDotMarkerBitmap() : getDotMarkerBitmap();
+            marker = newDotMarker(place, BitmapDescriptorFactory.fromBitmap(dotBitmap));
+            mMarkers.set(index, marker);
+            mMarkersByPlaceId.put(place.id, marker);
+            mTrimmedPlaces.remove(place, index - mPlaceTypeRanges.getStart(place.type));
+            mMarkersAdded++;
+        }
+        return marker;
+    }
+    
+    /**
+     * Remove the markers outside the viewport from the map, except for the
+     * selected place's. They are re-created when they come back into view.
+     *
+     * @return The approximate number of bytes released.
+     */
+    private long trimOffscreenMarkers() {
+        if (mMap == null) {
+            return 0;
+        }
+        
+        LatLngBounds bounds = mMap.getProjection().getVisibleRegion().latLngBounds;
+        int trimmed = 0;
+        for (int i = 0; i < mMarkers.size(); i++) {
+            Marker marker = mMarkers.get(i);
+            Place place = mPlaces.get(i);
+            if (marker != null && i != mSelectedPlaceIndex
+                    && !bounds.contains(new LatLng(place.lat, place.lng))) {
+                marker.remove();
+                mMarkers.set(i, null);
+                mMarkersByPlaceId.put(place.id, null);
+                mTrimmedPlaces.add(place, i - mPlaceTypeRanges.getStart(place.type));
+                trimmed++;
+            }
+        }
+        mMarkersRemoved += trimmed;
+        return (long) trimmed * MARKER_BYTES;
+    }
+    
+    /**
+     * Re-create some of the trimmed markers that are in the viewport. Only
+     * the cells in view are looked at, and at most marker_restore_limit
+     * markers are re-created per camera change, so zooming out doesn't undo
+     * the trim at once. None are re-created while the heatmap hides them.
+     */
+    private void restoreTrimmedMarkers() {
+        if (mTrimmedPlaces.size() == 0 || mHeatmapMode) {
+            return;
+        }
+        
+        LatLngBounds bounds = mMap.getProjection().getVisibleRegion().latLngBounds;
+        double south = bounds.southwest.latitude;
+        double west = bounds.southwest.longitude;
+        double north = bounds.northeast.latitude;
+        double east = bounds.northeast.longitude;
+        int limit = getResources().getInteger(R.integer.marker_restore_limit);
+        List<TrimmedPlaceGrid.Entry> entries;
+        if (west <= east) {
+            entries = mTrimmedPlaces.take(south, west, north, east, limit);
+        } else {
+            // The viewport crosses the antimeridian.
+            entries = mTrimmedPlaces.take(south, west, north, 180, limit);
+            entries.addAll(mTrimmedPlaces.take(south, -180, north, east,
+                    limit - entries.size()));
+        }
+        
+        for (TrimmedPlaceGrid.Entry entry : entries) {
+            getMarker(mPlaceTypeRanges.getStart(entry.place.type) + entry.offset);
+        }
+    }
+    
+    /**
+     * Apply a batch of live status updates to the markers and the place list.
+     */
+    private void updatePlaceStatuses(List<PlaceStatus> statuses) {
+        Marker selectedMarker = mSelectedPlaceIndex < mMarkers.size()
+                ? mMarkers.get(mSelectedPlaceIndex) : null;
+        BitmapDescriptor dotIcon = null;
+        BitmapDescriptor closedDotIcon = null;
+        boolean placesChanged = false;
+        
+        for (PlaceStatus status : statuses) {
+            PlaceStatus previous = mPlaceStatuses.put(status.placeId, status);
+            if (!mMarkersByPlaceId.containsKey(status.placeId)) {
+                continue; // Not on the map.
+            }
+            placesChanged = true;
+            
+            // Trimmed markers pick up the status when they are re-created.
+            Marker marker = mMarkersByPlaceId.get(status.placeId);
+            boolean wasOpen = previous == null || previous.open;
+            if (marker == null || wasOpen == status.open || marker.equals(selectedMarker)) {
+                continue;
+            }
             
-            mMarkers[i++] = marker;
+            // Only the dot icons reflect the status.
+            if (status.open) {
+                if (dotIcon == null) {
+                    dotIcon = BitmapDescriptorFactory.fromBitmap(getDotMarkerBitmap());
+                }
+                marker.setIcon(dotIcon);
+            } else {
+                if (closedDotIcon == null) {
+                    closedDotIcon = BitmapDescriptorFactory.fromBitmap(getClosedDotMarkerBitmap());
+                }
+                marker.setIcon(closedDotIcon);
+            }
+            mMarkerIconsSet++;
+        }
+        
+        if (placesChanged && mPlaceListView != null) {
+            ((ArrayAdapter<?>) mPlaceListView.getAdapter()).notifyDataSetChanged();
         }
     }
     
+    private boolean isPlaceClosed(Place place) {
+        PlaceStatus status = mPlaceStatuses.get(place.id);
+        return status != null && !status.open;
+    }
+    
     private void showPlacesOnMap(boolean animate) {
         Log.d(LOG_TAG, String.format("showPlaceOnMap(%b)", animate));
         
         LatLngBounds.Builder builder = LatLngBounds.builder();
 
-        for (Marker marker : mMarkers) {
-            builder.include(marker.getPosition());
+        for (Place place : mPlaces) {
+            builder.include(new LatLng(place.lat, place.lng));
         }
 
         int px = getResources().getDimensionPixelSize(R.dimen.map_padding);
 
+        holdOffCameraFollow();
         if (animate) {
             int recenterTime = getResources().getInteger(R.integer.map_recenter_ms);
             mMap.animateCamera(CameraUpdateFactory.newLatLngBounds(builder.build(), px),
@@ -529,22 +2087,63 @@ public class MainActivity extends ActionBarActivity {
         mMapInitPosition = mMap.getCameraPosition();
     }
 
+    /** Let the app's own camera move play out before following the walker again. */
+    private void holdOffCameraFollow() {
+        if (mCameraFollower != null) {
+            mCameraFollower.holdOff();
+        }
+    }
+
     private Bitmap getDotMarkerBitmap() {    
         Log.d(LOG_TAG, "getDotMarkerBitmap()");
         
         if (mDotMarkerBitmap == null || mDotMarkerBitmap.isRecycled()) {
-            // Create a marker bitmap from the dot shape drawable.
-            int px = getResources().getDimensionPixelSize(R.dimen.map_dot_marker_size);
-            mDotMarkerBitmap = Bitmap.createBitmap(px, px, Bitmap.Config.ARGB_8888);
-            Canvas canvas = new Canvas(mDotMarkerBitmap);
-            Drawable shape = getResources().getDrawable(R.drawable.map_dot_red);
-            shape.setBounds(0, 0, mDotMarkerBitmap.getWidth(), mDotMarkerBitmap.getHeight());
-            shape.draw(canvas);            
+            mDotMarkerBitmap = createDotMarkerBitmap(R.drawable.map_dot_red);
         }
         
         return mDotMarkerBitmap;
     }
     
+    /**
+     * Drop the dot marker bitmaps; the markers keep their icons, and the
+     * bitmaps are re-created when next needed. They aren't recycled, since
+     * the BitmapDescriptors made from them may still refer to them; they are
+     * collected once those are gone.
+     *
+     * @return The approximate number of bytes released.
+     */
+    private long releaseDotMarkerBitmaps() {
+        long bytes = 0;
+        for (Bitmap bitmap : new Bitmap[] { mDotMarkerBitmap, mClosedDotMarkerBitmap }) {
+            if (bitmap != null && !bitmap.isRecycled()) {
+                bytes += bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        }
+        mDotMarkerBitmap = null;
+        mClosedDotMarkerBitmap = null;
+        return bytes;
+    }
+    
+    private Bitmap getClosedDotMarkerBitmap() {
+        if (mClosedDotMarkerBitmap == null || mClosedDotMarkerBitmap.isRecycled()) {
+            mClosedDotMarkerBitmap = createDotMarkerBitmap(R.drawable.map_dot_grey);
+        }
+        
+        return mClosedDotMarkerBitmap;
+    }
+    
+    private Bitmap createDotMarkerBitmap(int drawableId) {
+        // Create a marker bitmap from the dot shape drawable.
+        int px = getResources().getDimensionPixelSize(R.dimen.map_dot_marker_size);
+        Bitmap bitmap = Bitmap.createBitmap(px, px, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        Drawable shape = getResources().getDrawable(drawableId);
+        shape.setBounds(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        shape.draw(canvas);
+        
+        return bitmap;
+    }
+    
     /**
      * PagerAdapter that creates Views with place info for the ViewPager.
      */
@@ -566,6 +2165,20 @@ public class MainActivity extends ActionBarActivity {
 
             Place place = mPlaces.get(position);
             ((TextView) view.findViewById(R.id.place_name)).setText(place.name);
+            mThumbnailLoader.load(place,
+                    (ImageView) view.findViewById(R.id.place_thumbnail));
+            
+            final TextView detailsView = (TextView) view.findViewById(R.id.place_details);
+            detailsView.setTag(place.id);
+            mPlaceDetailLoader.load(place, new PlaceDetailLoader.Listener() {
+                @Override
+                public void onPlaceDetailsLoaded(Place loaded, PlaceDetails details) {
+                    // The page may have been destroyed in the meantime.
+                    if (loaded.id.equals(detailsView.getTag())) {
+                        detailsView.setText(formatPlaceDetails(details));
+                    }
+                }
+            });
 
             ((ViewPager) collection).addView(view, 0);
 
@@ -574,11 +2187,25 @@ public class MainActivity extends ActionBarActivity {
 
         @Override
         public int getCount() {
+            if (mDeferOffscreenPages) {
+                return mDeferredPageCount;
+            }
             return mPlaces.size();
         }
 
+        @Override
+        public int getItemPosition(Object object) {
+            // Places may have been added or removed; let the pager re-create
+            // the (few) pages it currently holds.
+            return POSITION_NONE;
+        }
+
         @Override
         public void destroyItem(View collection, int position, Object view) {
+            // Don't decode thumbnails for pages that are gone.
+            mThumbnailLoader.cancel(
+                    (ImageView) ((View) view).findViewById(R.id.place_thumbnail));
+            ((View) view).findViewById(R.id.place_details).setTag(null);
             ((ViewPager) collection).removeView((View) view);
         }
 
@@ -626,8 +2253,17 @@ public class MainActivity extends ActionBarActivity {
                         getPackageName());
                 imageView.setImageResource(resId);
                 
-                // Make the checkbox visible.
-                rowView.findViewById(R.id.place_type).setVisibility(View.VISIBLE);
+                // Make the checkbox visible, and reflect the current selection.
+                CheckBox checkBox = (CheckBox) rowView.findViewById(R.id.place_type);
+                checkBox.setVisibility(View.VISIBLE);
+                checkBox.setChecked(mSelectedPlaceTypes.contains(NAV_PLACE_TYPES[position]));
+                
+                if (mFacetCounts != null) {
+                    TextView countView = (TextView) rowView.findViewById(R.id.place_type_count);
+                    countView.setVisibility(View.VISIBLE);
+                    countView.setText(String.valueOf(
+                            mFacetCounts[NAV_PLACE_TYPES[position].ordinal()]));
+                }
             }
             
             return rowView;
@@ -637,8 +2273,8 @@ public class MainActivity extends ActionBarActivity {
     private class PlaceArrayAdapter<T extends Place> extends ArrayAdapter<T> {
         private int listItemResource;
 
-        public PlaceArrayAdapter(Context context, int resource) {
-            super(context, resource);
+        public PlaceArrayAdapter(Context context, int resource, List<T> objects) {
+            super(context, resource, objects);
 
             this.listItemResource = resource;
         }
@@ -652,7 +2288,16 @@ public class MainActivity extends ActionBarActivity {
             View rowView = inflater.inflate(listItemResource, parent, false);
 
             TextView textView = (TextView) rowView.findViewById(R.id.text1);
-            textView.setText(place.name);
+            PlaceStatus status = mPlaceStatuses.get(place.id);
+            if (status == null) {
+                textView.setText(place.name);
+            } else if (!status.open) {
+                textView.setText(getString(R.string.place_closed, place.name));
+            } else if (status.busyness >= getResources().getInteger(R.integer.place_busy_threshold)) {
+                textView.setText(getString(R.string.place_busy, place.name));
+            } else {
+                textView.setText(place.name);
+            }
 
             String placeTypeStr = place.type.name().toLowerCase(Locale.US);
             int resId = getResources().getIdentifier("icon_" + placeTypeStr, "drawable", getPackageName());
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway;
+
+import android.annotation.SuppressLint;
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Releases memory in tiers as the system runs low on it. Each tier holds
+ * resources that are dearer to rebuild than those of the tiers below it; a
+ * trim releases the tier the trim level calls for and all the tiers below.
+ * Everything released must be rebuilt lazily by its owner when next needed.
+ * <p>
+ * The bytes reclaimed at each tier are totalled for the report.
+ * Must be used on the UI thread.
+ */
+public class MemoryTrimmer {
+    private static final String LOG_TAG = MemoryTrimmer.class.getName();
+
+    /** Markers outside the viewport. */
+    public static final int TIER_OFFSCREEN_MARKERS = 0;
+
+    /** Caches of what the pages and overlays show, e.g. thumbnails. */
+    public static final int TIER_VIEW_CACHES = 1;
+
+    /** Marker icon bitmaps. */
+    public static final int TIER_ICON_BITMAPS = 2;
+
+    /** Indexes for place queries. */
+    public static final int TIER_QUERY_CACHES = 3;
+
+    private static final String[] TIER_NAMES = {
+        "offscreen_markers", "view_caches", "icon_bitmaps", "query_caches"
+    };
+
+    /** Releases a resource. */
+    public interface Releasable {
+        /** Release the resource, returning the (approximate) bytes released. */
+        long release();
+    }
+
+    private final List<List<Releasable>> mTiers = new ArrayList<List<Releasable>>();
+    private final long[] mBytesReclaimed = new long[TIER_NAMES.length];
+    private final int[] mTrimCounts = new int[TIER_NAMES.length];
+
+    public MemoryTrimmer() {
+        for (int tier = 0; tier < TIER_NAMES.length; tier++) {
+            mTiers.add(new ArrayList<Releasable>());
+        }
+    }
+
+    public void register(int tier, Releasable releasable) {
+        mTiers.get(tier).add(releasable);
+    }
+
+    /**
+     * Return the highest tier to release for a trim level, or -1 if none.
+     * While the app is in the foreground only the cheaper tiers are
+     * released, since their owners rebuild them on the UI thread.
+     */
+    @SuppressLint("InlinedApi")
+    public static int getTier(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            return TIER_QUERY_CACHES;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return TIER_ICON_BITMAPS;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            return TIER_VIEW_CACHES;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            return TIER_OFFSCREEN_MARKERS;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return TIER_ICON_BITMAPS;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return TIER_VIEW_CACHES;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return TIER_OFFSCREEN_MARKERS;
+        }
+        return -1;
+    }
+
+    /** Release the tiers for a level from onTrimMemory. */
+    public long onTrimMemory(int level) {
+        return trim(getTier(level));
+    }
+
+    /** Release everything, as memory is critically low. */
+    public long onLowMemory() {
+        return trim(TIER_QUERY_CACHES);
+    }
+
+    /**
+     * Release the tiers up to and including a tier.
+     *
+     * @return The bytes released.
+     */
+    public long trim(int maxTier) {
+        long total = 0;
+        for (int tier = 0; tier <= maxTier; tier++) {
+            long bytes = 0;
+            for (Releasable releasable : mTiers.get(tier)) {
+                bytes += releasable.release();
+            }
+            mBytesReclaimed[tier] += bytes;
+            mTrimCounts[tier]++;
+            total += bytes;
+            Log.d(LOG_TAG, String.format("Released %s: %d bytes", TIER_NAMES[tier], bytes));
+        }
+        return total;
+    }
+
+    /** Return the bytes reclaimed at a tier so far. */
+    public long getBytesReclaimed(int tier) {
+        return mBytesReclaimed[tier];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int tier = 0; tier < TIER_NAMES.length; tier++) {
+            sb.append(String.format("%s trims=%d bytes=%d\n", TIER_NAMES[tier], mTrimCounts[tier],
+                    mBytesReclaimed[tier]));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import com.example.google.walkway.model.Place;
+import com.example.google.walkway.model.PlaceDetails;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Loads place details off the UI thread, keyed by place id, into a bounded
+ * memory cache.
+ * <p>
+ * The details of a place are read from {@code <base URL><place id>.json}, a
+ * JSON object with optional {@code description}, {@code rating} and
+ * {@code reviews} fields. Besides loading the details of the place being
+ * shown, the loader prefetches the details of the places on either side of
+ * it, so they are ready when the user swipes to them. Prefetches that fall
+ * out of the window around the current place before they finish, e.g.
+ * during fast swipes, are cancelled.
+ * <p>
+ * All methods must be called on the UI thread.
+ */
+public class PlaceDetailLoader {
+    private static final String LOG_TAG = PlaceDetailLoader.class.getName();
+
+    private static final int THREADS = 2;
+
+    public interface Listener {
+        /**
+         * Called on the UI thread with the details of the place, or null if
+         * it has none.
+         */
+        void onPlaceDetailsLoaded(Place place, PlaceDetails details);
+    }
+
+    private final String mBaseUrl;
+    private final int mPrefetchDistance;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor;
+
+    private final LruCache<String, Entry> mCache;
+
+    /** The requests being fetched, by place id. */
+    private final HashMap<String, Request> mRequests = new HashMap<String, Request>();
+
+    private int mLoads;
+    private int mCacheHits;
+    private int mPrefetches;
+    private int mPrefetchHits;
+    private int mPrefetchesCancelled;
+    private int mPrefetchesWasted;
+
+    /** A cached result; details is null for places without details. */
+    private static class Entry {
+        final PlaceDetails details;
+        boolean prefetched;
+        boolean used;
+        /** Dropped by trimMemory(), which doesn't make a prefetch wasted. */
+        boolean trimmed;
+
+        Entry(PlaceDetails details, boolean prefetched) {
+            this.details = details;
+            this.prefetched = prefetched;
+        }
+    }
+
+    /**
+     * @param baseUrl The URL of the directory holding the details.
+     * @param cacheSize The number of places to keep the details of.
+     * @param prefetchDistance The number of places on either side of the
+     *        current one to prefetch.
+     */
+    public PlaceDetailLoader(String baseUrl, int cacheSize, int prefetchDistance) {
+        mBaseUrl = baseUrl;
+        mPrefetchDistance = prefetchDistance;
+
+        mCache = new LruCache<String, Entry>(cacheSize) {
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Entry oldValue,
+                    Entry newValue) {
+                if (oldValue.prefetched && !oldValue.used && !oldValue.trimmed) {
+                    mPrefetchesWasted++;
+                }
+            }
+        };
+
+        mExecutor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "PlaceDetailLoader");
+            }
+        });
+    }
+
+    /**
+     * Load the details of a place. The listener is called right away if they
+     * are cached, and otherwise once they are fetched.
+     */
+    public void load(Place place, Listener listener) {
+        mLoads++;
+
+        Entry entry = mCache.get(place.id);
+        if (entry != null) {
+            mCacheHits++;
+            if (entry.prefetched && !entry.used) {
+                mPrefetchHits++;
+            }
+            entry.used = true;
+            listener.onPlaceDetailsLoaded(place, entry.details);
+            return;
+        }
+
+        Request request = mRequests.get(place.id);
+        if (request == null) {
+            request = submit(place, false);
+        } else if (request.mPrefetch && request.mListeners.isEmpty()) {
+            // Not fetched yet, but at least on its way.
+            mPrefetchHits++;
+        }
+        request.mListeners.add(listener);
+    }
+
+    /**
+     * Prefetch the details of the places around the current one, and cancel
+     * the prefetches of places that are no longer around it.
+     *
+     * @param places The places, in the order they are browsed.
+     * @param current The index of the current place.
+     */
+    public void prefetch(List<Place> places, int current) {
+        int from = Math.max(0, current - mPrefetchDistance);
+        int to = Math.min(places.size() - 1, current + mPrefetchDistance);
+
+        HashSet<String> window = new HashSet<String>();
+        for (int i = from; i <= to; i++) {
+            window.add(places.get(i).id);
+        }
+
+        for (Iterator<Request> it = mRequests.values().iterator(); it.hasNext();) {
+            Request request = it.next();
+            if (request.mPrefetch && request.mListeners.isEmpty()
+                    && !window.contains(request.mPlace.id)) {
+                request.mFuture.cancel(true);
+                it.remove();
+                mPrefetchesCancelled++;
+            }
+        }
+
+        // Nearest first, so the next swipe in either direction is ready soonest.
+        for (int distance = 1; distance <= mPrefetchDistance; distance++) {
+            if (current + distance <= to) {
+                prefetch(places.get(current + distance));
+            }
+            if (current - distance >= from) {
+                prefetch(places.get(current - distance));
+            }
+        }
+    }
+
+    /**
+     * Drop the cached details, e.g. when memory is low.
+     *
+     * @return The approximate number of bytes released.
+     */
+    public long trimMemory() {
+        long bytes = 0;
+        for (Entry entry : mCache.snapshot().values()) {
+            entry.trimmed = true;
+            bytes += 32;
+            if (entry.details != null) {
+                bytes += 48;
+                if (entry.details.description != null) {
+                    bytes += 40 + 2 * entry.details.description.length();
+                }
+            }
+        }
+        mCache.evictAll();
+        return bytes;
+    }
+
+    /** Stop loading. Listeners of pending loads are not called. */
+    public void close() {
+        mExecutor.shutdownNow();
+        mRequests.clear();
+    }
+
+    /** Return the fraction of loads that were served by a prefetch. */
+    public float getPrefetchHitRate() {
+        return mLoads == 0 ? 0 : mPrefetchHits / (float) mLoads;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("loads=%d cacheHits=%d prefetches=%d prefetchHits=%d "
+                + "hitRate=%.2f cancelled=%d wasted=%d", mLoads, mCacheHits, mPrefetches,
+                mPrefetchHits, getPrefetchHitRate(), mPrefetchesCancelled, mPrefetchesWasted);
+    }
+
+    private void prefetch(Place place) {
+        if (mCache.get(place.id) == null && !mRequests.containsKey(place.id)) {
+            submit(place, true);
+            mPrefetches++;
+        }
+    }
+
+    private Request submit(Place place, boolean prefetch) {
+        Request request = new Request(place, prefetch);
+        mRequests.put(place.id, request);
+        request.mFuture = mExecutor.submit(request);
+        return request;
+    }
+
+    private class Request implements Runnable {
+        private final Place mPlace;
+        private final boolean mPrefetch;
+        private final List<Listener> mListeners = new ArrayList<Listener>(1);
+        private Future<?> mFuture;
+
+        Request(Place place, boolean prefetch) {
+            mPlace = place;
+            mPrefetch = prefetch;
+        }
+
+        @Override
+        public void run() {
+            final PlaceDetails details;
+            try {
+                details = fetch();
+            } catch (IOException e) {
+                // Not cached, so a later load tries again.
+                Log.d(LOG_TAG, String.format("No details for %s: %s", mPlace.id, e));
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mRequests.get(mPlace.id) == Request.this) {
+                            mRequests.remove(mPlace.id);
+                            deliver(null);
+                        }
+                    }
+                });
+                return;
+            }
+
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mRequests.get(mPlace.id) != Request.this) {
+                        // Cancelled while it was being fetched.
+                        return;
+                    }
+                    mRequests.remove(mPlace.id);
+
+                    Entry entry = new Entry(details, mPrefetch);
+                    entry.used = !mListeners.isEmpty();
+                    mCache.put(mPlace.id, entry);
+                    deliver(details);
+                }
+            });
+        }
+
+        private void deliver(PlaceDetails details) {
+            for (Listener listener : mListeners) {
+                listener.onPlaceDetailsLoaded(mPlace, details);
+            }
+        }
+
+        /** Return the details, or null if the place has none. */
+        private PlaceDetails fetch() throws IOException {
+            URL url = new URL(mBaseUrl + ThumbnailLoader.encodePathSegment(mPlace.id) + ".json");
+            InputStream in;
+            try {
+                in = url.openStream();
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+
+            String json;
+            try {
+                json = readFully(in);
+            } finally {
+                in.close();
+            }
+
+            try {
+                JSONObject object = new JSONObject(json);
+                return new PlaceDetails(mPlace.id, object.optString("description", null),
+                        (float) object.optDouble("rating", Double.NaN),
+                        object.optInt("reviews", 0));
+            } catch (JSONException e) {
+                throw new IOException("Bad details: " + e.getMessage());
+            }
+        }
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4 * 1024];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            if (Thread.interrupted()) {
+                throw new IOException("Cancelled");
+            }
+            out.write(buffer, 0, count);
+        }
+        return out.toString("UTF-8");
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway;
+
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+
+import com.example.google.walkway.model.HeatmapRasterizer;
+import com.example.google.walkway.model.Place;
+import com.example.google.walkway.model.PlaceColumns;
+import com.google.android.gms.maps.model.Tile;
+import com.google.android.gms.maps.model.TileProvider;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+/**
+ * Provides heatmap tiles of the density of a list of places, for a tile
+ * overlay. The map requests tiles from its own background threads; rendered
+ * tiles are cached by zoom and tile coordinates.
+ */
+public class PlaceHeatmapTileProvider implements TileProvider {
+    private final List<Place> mPlaces;
+    private final int mTileSize;
+    private final int mRadius;
+
+    private HeatmapRasterizer mRasterizer;
+
+    private final LruCache<String, Tile> mTiles;
+
+    /**
+     * @param places The places; not copied, so must not change.
+     * @param tileSize The tile size, in pixels.
+     * @param radius The smoothing radius, in pixels.
+     * @param cacheBytes The size of the tile cache.
+     */
+    public PlaceHeatmapTileProvider(List<Place> places, int tileSize, int radius,
+            int cacheBytes) {
+        mPlaces = places;
+        mTileSize = tileSize;
+        mRadius = radius;
+        mTiles = new LruCache<String, Tile>(cacheBytes) {
+            @Override
+            protected int sizeOf(String key, Tile tile) {
+                return tile.data == null ? 1 : tile.data.length;
+            }
+        };
+    }
+
+    @Override
+    public Tile getTile(int x, int y, int zoom) {
+        String key = zoom + "/" + x + "/" + y;
+        Tile tile = mTiles.get(key);
+        if (tile != null) {
+            return tile;
+        }
+
+        int[] pixels = getRasterizer().render(x, y, zoom);
+        if (pixels == null) {
+            tile = NO_TILE;
+        } else {
+            Bitmap bitmap = Bitmap.createBitmap(pixels, mTileSize, mTileSize,
+                    Bitmap.Config.ARGB_8888);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            bitmap.recycle();
+            tile = new Tile(mTileSize, mTileSize, out.toByteArray());
+        }
+
+        mTiles.put(key, tile);
+        return tile;
+    }
+
+    /**
+     * Drop the cached tiles, e.g. when memory is low. The map asks for them
+     * again as needed.
+     *
+     * @return The number of bytes released.
+     */
+    public long trimMemory() {
+        long bytes = mTiles.size();
+        mTiles.evictAll();
+        return bytes;
+    }
+
+    /**
+     * Index the places now, e.g. on a background thread, rather than when
+     * the first tile is requested.
+     */
+    public void prepare() {
+        getRasterizer();
+    }
+
+    /** Index the places on first use, on one of the map's tile threads. */
+    private synchronized HeatmapRasterizer getRasterizer() {
+        if (mRasterizer == null) {
+            mRasterizer = new HeatmapRasterizer(new PlaceColumns(mPlaces), mTileSize, mRadius);
+        }
+        return mRasterizer;
+    }
+}
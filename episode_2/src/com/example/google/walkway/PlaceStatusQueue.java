@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway;
+
+import com.example.google.walkway.model.PlaceStatus;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Queue for live place status updates. Updates can be offered from any thread
+ * and are coalesced by place id, so only the latest status of a place is kept.
+ * The queue is drained on the UI thread at most once per frame, within a time
+ * budget, and the statuses are delivered to the listener in batches.
+ * <p>
+ * The budget covers the listener, which does most of the work (e.g. setting
+ * marker icons): its time per status is measured, and each batch is capped to
+ * what it can apply within the budget.
+ */
+public class PlaceStatusQueue {
+    private static final String LOG_TAG = PlaceStatusQueue.class.getName();
+
+    /** Frame interval used when Choreographer isn't available. */
+    private static final long FRAME_MS = 16;
+
+    /** Number of statuses to drain between checks of the time budget. */
+    private static final int BUDGET_CHECK_INTERVAL = 32;
+
+    /** The listener's assumed time per status, until it has been measured. */
+    private static final long INITIAL_NANOS_PER_STATUS = 50000;
+
+    public interface Listener {
+        /** Called on the UI thread with the latest status of each changed place. */
+        void onPlaceStatusesChanged(List<PlaceStatus> statuses);
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final long mBudgetNanos;
+    private Listener mListener;
+
+    // Guarded by mPending.
+    private final LinkedHashMap<String, PlaceStatus> mPending =
+            new LinkedHashMap<String, PlaceStatus>();
+    private boolean mDrainScheduled = false;
+    private long mOfferedCount = 0;
+    private long mDeliveredCount = 0;
+    private long mBatchCount = 0;
+    private int mMaxDepth = 0;
+
+    /** The listener's measured time per status. Only used on the UI thread. */
+    private double mNanosPerStatus = INITIAL_NANOS_PER_STATUS;
+    private int mBatchLimit;
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private final Runnable mScheduleFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                FrameDrainer.post(PlaceStatusQueue.this);
+            } else {
+                mHandler.postDelayed(mDrainRunnable, FRAME_MS);
+            }
+        }
+    };
+
+    /**
+     * @param listener Receives the batches of statuses.
+     * @param budgetMs The maximum time to spend draining per frame.
+     */
+    public PlaceStatusQueue(Listener listener, long budgetMs) {
+        mListener = listener;
+        mBudgetNanos = budgetMs * 1000000L;
+    }
+
+    /** Queue a status update. May be called from any thread. */
+    public void offer(PlaceStatus status) {
+        synchronized (mPending) {
+            // Re-insert so the map stays in order of the latest update.
+            mPending.remove(status.placeId);
+            mPending.put(status.placeId, status);
+            mOfferedCount++;
+            mMaxDepth = Math.max(mMaxDepth, mPending.size());
+            scheduleDrainLocked();
+        }
+    }
+
+    /** Queue a batch of status updates. May be called from any thread. */
+    public void offerAll(List<PlaceStatus> statuses) {
+        synchronized (mPending) {
+            for (PlaceStatus status : statuses) {
+                mPending.remove(status.placeId);
+                mPending.put(status.placeId, status);
+            }
+            mOfferedCount += statuses.size();
+            mMaxDepth = Math.max(mMaxDepth, mPending.size());
+            scheduleDrainLocked();
+        }
+    }
+
+    /** Stop delivering updates, dropping any that are pending. */
+    public void close() {
+        synchronized (mPending) {
+            mListener = null;
+            mPending.clear();
+        }
+        mHandler.removeCallbacks(mScheduleFrameRunnable);
+        mHandler.removeCallbacks(mDrainRunnable);
+    }
+
+    /** Return the number of places with an undelivered status. */
+    public int getQueueDepth() {
+        synchronized (mPending) {
+            return mPending.size();
+        }
+    }
+
+    /** Return the largest queue depth seen. */
+    public int getMaxQueueDepth() {
+        synchronized (mPending) {
+            return mMaxDepth;
+        }
+    }
+
+    /**
+     * Return the ratio of offered updates to delivered ones; e.g. 4 means that
+     * on average four updates were coalesced into each delivered status.
+     */
+    public float getCoalescingRatio() {
+        synchronized (mPending) {
+            long delivered = mDeliveredCount + mPending.size();
+            return delivered == 0 ? 1f : (float) mOfferedCount / delivered;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mPending) {
+            return String.format(
+                    "offered=%d delivered=%d batches=%d depth=%d maxDepth=%d ratio=%.2f limit=%d",
+                    mOfferedCount, mDeliveredCount, mBatchCount, mPending.size(), mMaxDepth,
+                    getCoalescingRatio(), mBatchLimit);
+        }
+    }
+
+    private void scheduleDrainLocked() {
+        if (!mDrainScheduled && mListener != null) {
+            mDrainScheduled = true;
+            mHandler.post(mScheduleFrameRunnable);
+        }
+    }
+
+    /** Deliver as many pending statuses as the listener can apply in the time budget. */
+    void drain() {
+        long start = System.nanoTime();
+        long deadline = start + mBudgetNanos;
+        List<PlaceStatus> batch;
+        Listener listener;
+
+        synchronized (mPending) {
+            mDrainScheduled = false;
+            listener = mListener;
+            if (listener == null || mPending.isEmpty()) {
+                return;
+            }
+
+            // Always make some progress, even if the listener is over budget.
+            mBatchLimit = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+                    mBudgetNanos / mNanosPerStatus));
+            batch = new ArrayList<PlaceStatus>(Math.min(mPending.size(), mBatchLimit));
+            Iterator<PlaceStatus> it = mPending.values().iterator();
+            while (it.hasNext() && batch.size() < mBatchLimit) {
+                batch.add(it.next());
+                it.remove();
+
+                if (batch.size() % BUDGET_CHECK_INTERVAL == 0 && System.nanoTime() > deadline) {
+                    break;
+                }
+            }
+
+            mDeliveredCount += batch.size();
+            mBatchCount++;
+
+            // Anything left over goes out with the next frame.
+            if (!mPending.isEmpty()) {
+                scheduleDrainLocked();
+            }
+        }
+
+        long listenerStart = System.nanoTime();
+        listener.onPlaceStatusesChanged(batch);
+        long end = System.nanoTime();
+
+        // Average over recent frames, so a single slow frame (e.g. a GC)
+        // doesn't shrink the batches for long.
+        mNanosPerStatus = (mNanosPerStatus + (double) (end - listenerStart) / batch.size()) / 2;
+
+        if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
+            Log.v(LOG_TAG, String.format("drain(%d) %.2fms %s", batch.size(),
+                    (end - start) / 1e6, this));
+        }
+    }
+
+    /** Choreographer glue, kept separate so older platforms never load it. */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class FrameDrainer implements Choreographer.FrameCallback {
+        private final PlaceStatusQueue mQueue;
+
+        private FrameDrainer(PlaceStatusQueue queue) {
+            mQueue = queue;
+        }
+
+        static void post(PlaceStatusQueue queue) {
+            Choreographer.getInstance().postFrameCallback(new FrameDrainer(queue));
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mQueue.drain();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway;
+
+import com.example.google.walkway.model.Place;
+import com.example.google.walkway.model.PlaceStatus;
+
+import android.os.Bundle;
+import android.support.v4.app.Fragment;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * UI-less fragment that is retained across configuration changes, so that
+ * MainActivity can keep its query results instead of re-querying and
+ * rebuilding them when it is recreated.
+ */
+public class PlacesStateFragment extends Fragment {
+    public static final String TAG = PlacesStateFragment.class.getName();
+
+    /** The places on the map, in pager order. */
+    ArrayList<Place> mPlaces;
+
+    /** The latest live status of each place, by place id. */
+    HashMap<String, PlaceStatus> mPlaceStatuses;
+
+    /**
+     * The interactions recorded so far, and the replay in progress, so that
+     * recording and replaying go on across configuration changes.
+     */
+    InteractionLog mInteractionLog;
+    InteractionReplayer mReplayer;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setRetainInstance(true);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway;
+
+import com.example.google.walkway.model.Place;
+import com.example.google.walkway.model.PlaceTypeRanges;
+import com.example.google.walkway.model.PlacesService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * A replay target that keeps the same place bookkeeping as MainActivity (the
+ * selected and displayed place types, the displayed places and the selected
+ * place) without a map or views, and counts the marker operations the
+ * activity would make. Runs anywhere, e.g. on a plain JVM.
+ */
+public class StandInMap implements InteractionReplayer.Target {
+    private final TreeSet<Place.PlaceType> mSelectedPlaceTypes = new TreeSet<Place.PlaceType>();
+    private final TreeSet<Place.PlaceType> mDisplayedPlaceTypes = new TreeSet<Place.PlaceType>();
+    private final List<Place> mPlaces = new ArrayList<Place>();
+    private final PlaceTypeRanges mPlaceTypeRanges;
+    private int mSelectedPlaceIndex;
+
+    public StandInMap(Place.PlaceType... placeTypes) {
+        for (Place.PlaceType type : placeTypes) {
+            mSelectedPlaceTypes.add(type);
+            mDisplayedPlaceTypes.add(type);
+        }
+        mPlaces.addAll(PlacesService.getPlacesByType(placeTypes));
+        mPlaceTypeRanges = new PlaceTypeRanges(mPlaces);
+    }
+
+    @Override
+    public void perform(int type, int arg1, int arg2, InteractionReplayer.Report report) {
+        switch (type) {
+            case InteractionLog.DRAWER_CLOSE:
+                if (arg1 == InteractionLog.DRAWER_NAV) {
+                    updateDisplayedPlaceTypes(report);
+                }
+                break;
+            case InteractionLog.PLACE_TYPE:
+                Place.PlaceType placeType = Place.PlaceType.values()[arg1];
+                if (arg2 != 0) {
+                    mSelectedPlaceTypes.add(placeType);
+                } else {
+                    mSelectedPlaceTypes.remove(placeType);
+                }
+                break;
+            case InteractionLog.MARKER_TAP:
+            case InteractionLog.PAGE_SWIPE:
+                if (arg1 >= 0 && arg1 < mPlaces.size()) {
+                    // The old and new selected markers change icons, even if
+                    // they are the same one, as in MainActivity.
+                    mSelectedPlaceIndex = arg1;
+                    report.count("marker_icons_set", 2);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    public List<Place> getPlaces() {
+        return mPlaces;
+    }
+
+    public int getSelectedPlaceIndex() {
+        return mSelectedPlaceIndex;
+    }
+
+    /** Apply the place type delta, as MainActivity does when the drawer closes. */
+    private void updateDisplayedPlaceTypes(InteractionReplayer.Report report) {
+        TreeSet<Place.PlaceType> addedTypes = new TreeSet<Place.PlaceType>(mSelectedPlaceTypes);
+        addedTypes.removeAll(mDisplayedPlaceTypes);
+        TreeSet<Place.PlaceType> removedTypes = new TreeSet<Place.PlaceType>(mDisplayedPlaceTypes);
+        removedTypes.removeAll(mSelectedPlaceTypes);
+        if (addedTypes.isEmpty() && removedTypes.isEmpty()) {
+            return;
+        }
+
+        PlaceTypeRanges rangesBefore = mPlaceTypeRanges.copy();
+        Place.PlaceType selectedType = mSelectedPlaceIndex < mPlaces.size()
+                ? mPlaces.get(mSelectedPlaceIndex).type : null;
+
+        for (Place.PlaceType type : removedTypes) {
+            int start = mPlaceTypeRanges.getStart(type);
+            int count = mPlaceTypeRanges.getCount(type);
+            report.count("markers_removed", count);
+            mPlaces.subList(start, start + count).clear();
+            mPlaceTypeRanges.setCount(type, 0);
+        }
+
+        for (Place.PlaceType type : addedTypes) {
+            List<Place> addedPlaces = PlacesService.getPlacesByType(type);
+            report.count("place_queries", 1);
+            report.count("markers_added", addedPlaces.size());
+            mPlaces.addAll(mPlaceTypeRanges.getStart(type), addedPlaces);
+            mPlaceTypeRanges.setCount(type, addedPlaces.size());
+        }
+
+        mDisplayedPlaceTypes.clear();
+        mDisplayedPlaceTypes.addAll(mSelectedPlaceTypes);
+
+        int index = selectedType == null ? -1
+                : mPlaceTypeRanges.mapIndex(rangesBefore, mSelectedPlaceIndex, selectedType);
+        mSelectedPlaceIndex = Math.max(0, index);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records the time of named startup milestones (e.g. first frame, first
+ * marker) relative to the start of the trace, and logs them. Stages are also
+ * emitted as systrace sections on platforms that support it.
+ */
+public class StartupTrace {
+    private static final String LOG_TAG = StartupTrace.class.getName();
+
+    public static final String FIRST_FRAME = "first_frame";
+    public static final String FIRST_MARKER = "first_marker";
+
+    private final long mStartTime = SystemClock.uptimeMillis();
+    private final LinkedHashMap<String, Long> mMarks = new LinkedHashMap<String, Long>();
+
+    /** Record a milestone, if it hasn't already been recorded. */
+    public void mark(String name) {
+        if (mMarks.containsKey(name)) {
+            return;
+        }
+
+        long elapsed = SystemClock.uptimeMillis() - mStartTime;
+        mMarks.put(name, elapsed);
+        Log.i(LOG_TAG, String.format("%s at %dms", name, elapsed));
+    }
+
+    /** Return the time of the milestone since the start of the trace, or -1. */
+    public long getMillis(String name) {
+        Long elapsed = mMarks.get(name);
+        return elapsed == null ? -1 : elapsed;
+    }
+
+    /** Begin a systrace section for a startup stage. Must be paired with endStage(). */
+    public void beginStage(String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Sections.begin(name);
+        }
+    }
+
+    public void endStage() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Sections.end();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mMarks.toString();
+    }
+
+    /**
+     * Append the milestones to a log of startups, as a line with a label
+     * (e.g. whether the state was restored) followed by name=millis pairs.
+     */
+    public void appendTo(File file, String label) throws IOException {
+        Writer writer = new FileWriter(file, true);
+        try {
+            writer.write(label);
+            for (Map.Entry<String, Long> mark : mMarks.entrySet()) {
+                writer.write(String.format("\t%s=%d", mark.getKey(), mark.getValue()));
+            }
+            writer.write('\n');
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Summarize a milestone across the startups in a log written by
+     * appendTo(), as the count and median time per label.
+     */
+    public static String summarize(File file, String name) throws IOException {
+        TreeMap<String, List<Long>> millisByLabel = new TreeMap<String, List<Long>>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String prefix = name + "=";
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                String[] fields = line.split("\t");
+                for (int i = 1; i < fields.length; i++) {
+                    if (fields[i].startsWith(prefix)) {
+                        List<Long> millis = millisByLabel.get(fields[0]);
+                        if (millis == null) {
+                            millis = new ArrayList<Long>();
+                            millisByLabel.put(fields[0], millis);
+                        }
+                        millis.add(Long.parseLong(fields[i].substring(prefix.length())));
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        StringBuilder sb = new StringBuilder(name);
+        for (Map.Entry<String, List<Long>> entry : millisByLabel.entrySet()) {
+            List<Long> millis = entry.getValue();
+            Collections.sort(millis);
+            sb.append(String.format(" %s: n=%d median=%dms", entry.getKey(), millis.size(),
+                    millis.get(millis.size() / 2)));
+        }
+        return sb.toString();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static class Sections {
+        static void begin(String name) {
+            Trace.beginSection(name);
+        }
+
+        static void end() {
+            Trace.endSection();
+        }
+    }
+}
@@ -0,0 +1,466 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+import android.widget.ImageView;
+
+import com.example.google.walkway.model.Place;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Loads place thumbnails into image views off the UI thread.
+ * <p>
+ * The image for a place is read from {@code <base URL><place id>.jpg}; the
+ * base URL may be a {@code file:} URL (e.g. a local directory) or an
+ * {@code http:} URL. Each image is decoded with a sample size close to the
+ * thumbnail size, center-cropped to exactly that size and written to a disk
+ * cache, so later decodes are small and, being all the same size, can reuse
+ * the memory of pooled bitmaps. Decoded thumbnails are kept in a memory LRU
+ * cache.
+ * <p>
+ * All methods must be called on the UI thread.
+ */
+public class ThumbnailLoader {
+    private static final String LOG_TAG = ThumbnailLoader.class.getName();
+
+    private static final int THREADS = 2;
+    private static final int POOL_SIZE = 4;
+    private static final int JPEG_QUALITY = 85;
+
+    private final String mBaseUrl;
+    private final File mCacheDir;
+    private final long mMaxCacheBytes;
+    private final int mWidth;
+    private final int mHeight;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor;
+
+    private final LruCache<String, Bitmap> mMemoryCache;
+
+    /** Bitmaps shown in an image view, which must not be reused. */
+    private final HashMap<Bitmap, Integer> mBitmapsInUse = new HashMap<Bitmap, Integer>();
+
+    /** Evicted bitmaps whose memory can be reused; guarded by itself. */
+    private final ArrayList<Bitmap> mPool = new ArrayList<Bitmap>();
+
+    private final HashMap<ImageView, Request> mRequests = new HashMap<ImageView, Request>();
+
+    /**
+     * @param baseUrl The URL of the directory holding the images, ending in
+     *        a slash.
+     * @param cacheDir The disk cache directory.
+     * @param maxCacheBytes The size the disk cache is trimmed to.
+     * @param memoryCacheBytes The size of the memory cache.
+     * @param width The thumbnail width, in pixels.
+     * @param height The thumbnail height, in pixels.
+     */
+    public ThumbnailLoader(String baseUrl, File cacheDir, long maxCacheBytes,
+            int memoryCacheBytes, int width, int height) {
+        mBaseUrl = baseUrl;
+        mCacheDir = cacheDir;
+        mMaxCacheBytes = maxCacheBytes;
+        mWidth = width;
+        mHeight = height;
+
+        mMemoryCache = new LruCache<String, Bitmap>(memoryCacheBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue,
+                    Bitmap newValue) {
+                if (!mBitmapsInUse.containsKey(oldValue)) {
+                    recycle(oldValue);
+                }
+            }
+        };
+
+        mExecutor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Stay out of the way of the UI thread while swiping.
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "ThumbnailLoader");
+            }
+        });
+    }
+
+    /**
+     * Show the thumbnail of the place in the view, replacing any earlier
+     * request for the view.
+     */
+    public void load(Place place, ImageView view) {
+        cancel(view);
+
+        Bitmap bitmap = mMemoryCache.get(place.id);
+        if (bitmap != null) {
+            show(view, bitmap);
+            return;
+        }
+
+        Request request = new Request(place.id, view);
+        mRequests.put(view, request);
+        request.mFuture = mExecutor.submit(request);
+    }
+
+    /**
+     * Cancel the request for the view, if it is still loading, and clear the
+     * view, e.g. when its page is destroyed.
+     */
+    public void cancel(ImageView view) {
+        Request request = mRequests.remove(view);
+        if (request != null) {
+            request.mFuture.cancel(true);
+        }
+
+        Bitmap bitmap = view.getTag() instanceof Bitmap ? (Bitmap) view.getTag() : null;
+        view.setImageDrawable(null);
+        view.setTag(null);
+        if (bitmap != null) {
+            release(bitmap);
+        }
+    }
+
+    /**
+     * Drop the cached and pooled thumbnails, e.g. when memory is low.
+     * Thumbnails that are shown are kept.
+     *
+     * @return The number of bytes released.
+     */
+    public long trimMemory() {
+        long bytes = 0;
+        for (Bitmap bitmap : mMemoryCache.snapshot().values()) {
+            if (!mBitmapsInUse.containsKey(bitmap)) {
+                bytes += bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        }
+        mMemoryCache.evictAll();
+        synchronized (mPool) {
+            // Includes the bitmaps just evicted.
+            mPool.clear();
+        }
+        return bytes;
+    }
+
+    /** Stop loading. Thumbnails already shown are not affected. */
+    public void close() {
+        mExecutor.shutdownNow();
+        mRequests.clear();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s, %d in use, %d pooled", mMemoryCache, mBitmapsInUse.size(),
+                mPool.size());
+    }
+
+    private void show(ImageView view, Bitmap bitmap) {
+        Integer count = mBitmapsInUse.get(bitmap);
+        mBitmapsInUse.put(bitmap, count == null ? 1 : count + 1);
+        view.setTag(bitmap);
+        view.setImageBitmap(bitmap);
+    }
+
+    private void release(Bitmap bitmap) {
+        Integer count = mBitmapsInUse.remove(bitmap);
+        if (count != null && count > 1) {
+            mBitmapsInUse.put(bitmap, count - 1);
+        } else if (!mMemoryCache.snapshot().containsValue(bitmap)) {
+            // Evicted while it was shown.
+            recycle(bitmap);
+        }
+    }
+
+    /** Pool the bitmap for reuse by a later decode, or drop it. */
+    private void recycle(Bitmap bitmap) {
+        if (bitmap.getWidth() != mWidth || bitmap.getHeight() != mHeight
+                || !bitmap.isMutable()) {
+            return;
+        }
+        synchronized (mPool) {
+            if (mPool.size() < POOL_SIZE) {
+                mPool.add(bitmap);
+            }
+        }
+    }
+
+    private Bitmap takeFromPool() {
+        synchronized (mPool) {
+            return mPool.isEmpty() ? null : mPool.remove(mPool.size() - 1);
+        }
+    }
+
+    /**
+     * Return the disk cache file of a place's thumbnail. Files are named by a
+     * SHA-1 of the place id, so that ids needn't be valid file names and
+     * never share a file.
+     */
+    private File getCacheFile(String placeId) {
+        return new File(mCacheDir, String.format("%s_%dx%d.jpg", sha1Hex(placeId), mWidth,
+                mHeight));
+    }
+
+    private static String sha1Hex(String s) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Encode a place id as a URL path segment. URLEncoder encodes for forms,
+     * where a space is a "+"; in a path it must be "%20" (a literal "+" is
+     * already encoded as "%2B").
+     */
+    static String encodePathSegment(String s) throws IOException {
+        return URLEncoder.encode(s, "UTF-8").replace("+", "%20");
+    }
+
+    /** Decode a thumbnail from the disk cache, reusing a pooled bitmap if possible. */
+    private Bitmap decodeCached(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        Bitmap reusable = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            reusable = takeFromPool();
+            Reuse.apply(options, reusable);
+        }
+
+        try {
+            return BitmapFactory.decodeFile(file.getPath(), options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap didn't fit after all; decode without it.
+            return BitmapFactory.decodeFile(file.getPath());
+        }
+    }
+
+    /**
+     * Decode an image with the largest power-of-two sample size that keeps it
+     * at least as large as the thumbnail, then center-crop it.
+     */
+    private Bitmap decodeSource(byte[] data) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= mWidth
+                && options.outHeight / (sampleSize * 2) >= mHeight) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        Bitmap decoded = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (decoded == null) {
+            return null;
+        }
+
+        // Crop to the thumbnail's aspect ratio, then scale.
+        int width = decoded.getWidth();
+        int height = decoded.getHeight();
+        Rect source;
+        if (width * mHeight > height * mWidth) {
+            int cropped = height * mWidth / mHeight;
+            source = new Rect((width - cropped) / 2, 0, (width + cropped) / 2, height);
+        } else {
+            int cropped = width * mHeight / mWidth;
+            source = new Rect(0, (height - cropped) / 2, width, (height + cropped) / 2);
+        }
+
+        Bitmap thumbnail = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+        new Canvas(thumbnail).drawBitmap(decoded, source, new Rect(0, 0, mWidth, mHeight),
+                new Paint(Paint.FILTER_BITMAP_FLAG));
+        decoded.recycle();
+        return thumbnail;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[16 * 1024];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            if (Thread.interrupted()) {
+                throw new IOException("Cancelled");
+            }
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    private void writeToCache(File file, Bitmap thumbnail) throws IOException {
+        mCacheDir.mkdirs();
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            thumbnail.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+        }
+    }
+
+    /** Delete the least recently used files until the cache fits. */
+    private synchronized void trimCache() {
+        File[] files = mCacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= mMaxCacheBytes) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && total > mMaxCacheBytes; i++) {
+            total -= files[i].length();
+            files[i].delete();
+        }
+    }
+
+    private class Request implements Runnable {
+        private final String mPlaceId;
+        private final ImageView mView;
+        private Future<?> mFuture;
+
+        Request(String placeId, ImageView view) {
+            mPlaceId = placeId;
+            mView = view;
+        }
+
+        @Override
+        public void run() {
+            final Bitmap bitmap = loadThumbnail();
+            if (bitmap == null) {
+                return;
+            }
+
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mMemoryCache.put(mPlaceId, bitmap);
+                    if (mRequests.get(mView) == Request.this) {
+                        mRequests.remove(mView);
+                        show(mView, bitmap);
+                    }
+                }
+            });
+        }
+
+        private Bitmap loadThumbnail() {
+            File file = getCacheFile(mPlaceId);
+            if (file.exists()) {
+                // Keep recently used files when trimming.
+                file.setLastModified(System.currentTimeMillis());
+                Bitmap bitmap = decodeCached(file);
+                if (bitmap != null) {
+                    return bitmap;
+                }
+            }
+
+            try {
+                URL url = new URL(mBaseUrl + encodePathSegment(mPlaceId) + ".jpg");
+                InputStream in = url.openStream();
+                byte[] data;
+                try {
+                    data = readFully(in);
+                } finally {
+                    in.close();
+                }
+
+                Bitmap thumbnail = decodeSource(data);
+                if (thumbnail != null && !Thread.currentThread().isInterrupted()) {
+                    writeToCache(file, thumbnail);
+                    trimCache();
+                }
+                return thumbnail;
+            } catch (IOException e) {
+                Log.d(LOG_TAG, String.format("No thumbnail for %s: %s", mPlaceId, e));
+                return null;
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static class Reuse {
+        static void apply(BitmapFactory.Options options, Bitmap bitmap) {
+            options.inMutable = true;
+            options.inBitmap = bitmap;
+        }
+    }
+}
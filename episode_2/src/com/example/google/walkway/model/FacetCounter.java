@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway.model;
+
+/**
+ * Counts the places of each type in a rectangle (e.g. the viewport) in
+ * constant time per type. The places are binned into a grid over their
+ * bounding box, and each type keeps a summed-area table of its grid: entry
+ * (r, c) is the number of places of the type in the rows before r and the
+ * columns before c. The count for any block of cells is then four lookups.
+ * <p>
+ * Counts are at the resolution of the grid: places in the cells that the
+ * rectangle partly covers are included.
+ */
+public class FacetCounter {
+    private static final int TYPE_COUNT = Place.PlaceType.values().length;
+
+    private final double mMinLat;
+    private final double mMinLng;
+    private final double mCellLat;
+    private final double mCellLng;
+    private final int mRows;
+    private final int mColumns;
+
+    /** Summed-area table per type ordinal, (rows + 1) * (columns + 1), or null. */
+    private final int[][] mTables;
+
+    /**
+     * @param gridSize The number of rows and columns of the grid. Memory is
+     *        about 4 * gridSize^2 bytes per place type in the catalog.
+     */
+    public FacetCounter(PlaceColumns columns, int gridSize) {
+        double minLat = Double.MAX_VALUE;
+        double minLng = Double.MAX_VALUE;
+        double maxLat = -Double.MAX_VALUE;
+        double maxLng = -Double.MAX_VALUE;
+        for (int i = 0; i < columns.size; i++) {
+            minLat = Math.min(minLat, columns.lats[i]);
+            minLng = Math.min(minLng, columns.lngs[i]);
+            maxLat = Math.max(maxLat, columns.lats[i]);
+            maxLng = Math.max(maxLng, columns.lngs[i]);
+        }
+
+        mRows = columns.size == 0 ? 1 : gridSize;
+        mColumns = columns.size == 0 ? 1 : gridSize;
+        mMinLat = columns.size == 0 ? 0 : minLat;
+        mMinLng = columns.size == 0 ? 0 : minLng;
+        // Pad the extent slightly so that the maximum falls inside the last cell.
+        mCellLat = Math.max(1e-9, (maxLat - minLat) * 1.000001 / mRows);
+        mCellLng = Math.max(1e-9, (maxLng - minLng) * 1.000001 / mColumns);
+
+        int stride = mColumns + 1;
+        mTables = new int[TYPE_COUNT][];
+        for (int i = 0; i < columns.size; i++) {
+            int type = columns.types[i];
+            if (mTables[type] == null) {
+                mTables[type] = new int[(mRows + 1) * stride];
+            }
+            int row = clamp(row(columns.lats[i]), 0, mRows - 1);
+            int column = clamp(column(columns.lngs[i]), 0, mColumns - 1);
+            mTables[type][(row + 1) * stride + column + 1]++;
+        }
+
+        // Turn the cell counts into prefix sums over rows, then columns.
+        for (int[] table : mTables) {
+            if (table == null) {
+                continue;
+            }
+            for (int r = 1; r <= mRows; r++) {
+                for (int c = 1; c <= mColumns; c++) {
+                    table[r * stride + c] += table[r * stride + c - 1];
+                }
+            }
+            for (int r = 1; r <= mRows; r++) {
+                for (int c = 1; c <= mColumns; c++) {
+                    table[r * stride + c] += table[(r - 1) * stride + c];
+                }
+            }
+        }
+    }
+
+    /**
+     * Count the places of each type in a rectangle. A rectangle whose west
+     * edge is east of its east edge crosses the antimeridian.
+     *
+     * @param out Receives the count for each type, by ordinal.
+     */
+    public void count(double south, double west, double north, double east, int[] out) {
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            out[type] = 0;
+        }
+
+        if (west > east) {
+            add(south, west, north, 180, out);
+            add(south, -180, north, east, out);
+        } else {
+            add(south, west, north, east, out);
+        }
+    }
+
+    private void add(double south, double west, double north, double east, int[] out) {
+        // The block of cells [r0, r1) x [c0, c1) that the rectangle touches.
+        int r0 = clamp(row(south), 0, mRows);
+        int r1 = clamp(row(north) + 1, 0, mRows);
+        int c0 = clamp(column(west), 0, mColumns);
+        int c1 = clamp(column(east) + 1, 0, mColumns);
+        if (r0 >= r1 || c0 >= c1) {
+            return;
+        }
+
+        int stride = mColumns + 1;
+        int a = r1 * stride + c1;
+        int b = r0 * stride + c1;
+        int c = r1 * stride + c0;
+        int d = r0 * stride + c0;
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            int[] table = mTables[type];
+            if (table != null) {
+                out[type] += table[a] - table[b] - table[c] + table[d];
+            }
+        }
+    }
+
+    private int row(double lat) {
+        return (int) Math.floor((lat - mMinLat) / mCellLat);
+    }
+
+    private int column(double lng) {
+        return (int) Math.floor((lng - mMinLng) / mCellLng);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /** Return the approximate size of the tables, in bytes. */
+    public long getByteCount() {
+        long bytes = 0;
+        for (int[] table : mTables) {
+            // Types without places have no table.
+            if (table != null) {
+                bytes += 4L * table.length;
+            }
+        }
+        return bytes;
+    }
+}
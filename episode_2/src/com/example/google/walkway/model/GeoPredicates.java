@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway.model;
+
+/**
+ * Batch geometric predicates over {@link PlaceColumns}. Each predicate runs a
+ * tight loop over the primitive columns, with a cheap bounding box test first
+ * so that the trigonometry is only evaluated for nearby points.
+ */
+public class GeoPredicates {
+    /** Mean radius of the earth, in meters. */
+    public static final double EARTH_RADIUS = 6371009;
+
+    private GeoPredicates() {
+    }
+
+    /**
+     * Compute the great-circle (haversine) distance from a reference point to
+     * each place.
+     *
+     * @param out Receives the distances, in meters. Must hold columns.size values.
+     */
+    public static void distances(PlaceColumns columns, double lat, double lng, double[] out) {
+        double lat0 = Math.toRadians(lat);
+        double lng0 = Math.toRadians(lng);
+        double cosLat0 = Math.cos(lat0);
+        double[] lats = columns.lats;
+        double[] lngs = columns.lngs;
+        double[] cosLats = columns.cosLats;
+
+        for (int i = 0; i < columns.size; i++) {
+            double sinDLat = Math.sin((Math.toRadians(lats[i]) - lat0) * 0.5);
+            double sinDLng = Math.sin((Math.toRadians(lngs[i]) - lng0) * 0.5);
+            double a = sinDLat * sinDLat + cosLat0 * cosLats[i] * sinDLng * sinDLng;
+            out[i] = 2 * EARTH_RADIUS * Math.asin(Math.sqrt(Math.min(1, a)));
+        }
+    }
+
+    /**
+     * Mark the places within a radius of a point.
+     *
+     * @param out Receives true for each place within the radius; other
+     *        elements are left as is, so several circles can be OR-ed together.
+     * @return The number of places newly marked.
+     */
+    public static int withinRadius(PlaceColumns columns, double lat, double lng,
+            double radiusMeters, boolean[] out) {
+        double lat0 = Math.toRadians(lat);
+        double lng0 = Math.toRadians(lng);
+        double cosLat0 = Math.cos(lat0);
+
+        // Compare the haversine term directly, avoiding asin and sqrt.
+        double sinHalf = Math.sin(Math.min(Math.PI, radiusMeters / EARTH_RADIUS) * 0.5);
+        double maxA = sinHalf * sinHalf;
+
+        // Bounding box in degrees; conservative near the poles.
+        double dLat = Math.toDegrees(radiusMeters / EARTH_RADIUS);
+        double dLng = cosLat0 > 1e-6 ? Math.min(180, dLat / cosLat0) : 180;
+        double minLat = lat - dLat;
+        double maxLat = lat + dLat;
+        double minLng = lng - dLng;
+        double maxLng = lng + dLng;
+
+        double[] lats = columns.lats;
+        double[] lngs = columns.lngs;
+        double[] cosLats = columns.cosLats;
+        int count = 0;
+
+        for (int i = 0; i < columns.size; i++) {
+            double pLat = lats[i];
+            double pLng = lngs[i];
+            if (out[i] || pLat < minLat || pLat > maxLat
+                    || (dLng < 180 && (pLng < minLng || pLng > maxLng))) {
+                continue;
+            }
+
+            double sinDLat = Math.sin((Math.toRadians(pLat) - lat0) * 0.5);
+            double sinDLng = Math.sin((Math.toRadians(pLng) - lng0) * 0.5);
+            double a = sinDLat * sinDLat + cosLat0 * cosLats[i] * sinDLng * sinDLng;
+            if (a <= maxA) {
+                out[i] = true;
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Mark the places inside a polygon, using the even-odd rule. Edges are
+     * treated as straight lines in latitude/longitude, which is accurate for
+     * neighbourhood-sized polygons.
+     *
+     * @param polyLats The latitudes of the polygon vertices. The polygon is
+     *        closed implicitly.
+     * @param polyLngs The longitudes of the polygon vertices.
+     * @param out Receives true for each place inside the polygon; other
+     *        elements are left as is.
+     * @return The number of places newly marked.
+     */
+    public static int withinPolygon(PlaceColumns columns, double[] polyLats, double[] polyLngs,
+            boolean[] out) {
+        int vertices = polyLats.length;
+        if (vertices < 3) {
+            return 0;
+        }
+
+        double minLat = Double.MAX_VALUE;
+        double maxLat = -Double.MAX_VALUE;
+        double minLng = Double.MAX_VALUE;
+        double maxLng = -Double.MAX_VALUE;
+        for (int v = 0; v < vertices; v++) {
+            minLat = Math.min(minLat, polyLats[v]);
+            maxLat = Math.max(maxLat, polyLats[v]);
+            minLng = Math.min(minLng, polyLngs[v]);
+            maxLng = Math.max(maxLng, polyLngs[v]);
+        }
+
+        // Precompute each edge's slope so that the inner loop is a multiply-add.
+        double[] edgeLng = new double[vertices];
+        double[] edgeSlope = new double[vertices];
+        for (int v = 0, u = vertices - 1; v < vertices; u = v++) {
+            double dLat = polyLats[u] - polyLats[v];
+            edgeLng[v] = polyLngs[v];
+            edgeSlope[v] = dLat == 0 ? 0 : (polyLngs[u] - polyLngs[v]) / dLat;
+        }
+
+        double[] lats = columns.lats;
+        double[] lngs = columns.lngs;
+        int count = 0;
+
+        for (int i = 0; i < columns.size; i++) {
+            double pLat = lats[i];
+            double pLng = lngs[i];
+            if (out[i] || pLat < minLat || pLat > maxLat || pLng < minLng || pLng > maxLng) {
+                continue;
+            }
+
+            boolean inside = false;
+            for (int v = 0, u = vertices - 1; v < vertices; u = v++) {
+                double vLat = polyLats[v];
+                if ((vLat > pLat) != (polyLats[u] > pLat)
+                        && pLng < edgeLng[v] + (pLat - vLat) * edgeSlope[v]) {
+                    inside = !inside;
+                }
+            }
+
+            if (inside) {
+                out[i] = true;
+                count++;
+            }
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway.model;
+
+import java.util.Arrays;
+
+/**
+ * Renders the density of places as heatmap tiles, in the Web Mercator tile
+ * scheme used by the map. Each place adds one to the pixel it falls on; the
+ * counts are then smoothed with a Gaussian kernel and mapped to colors.
+ * <p>
+ * Intensities are normalized per zoom level, not per tile, so that adjacent
+ * tiles match. Rendering is thread-safe, so tiles can be rendered in parallel.
+ */
+public class HeatmapRasterizer {
+    /** Number of colors in the color map. */
+    private static final int COLORS = 256;
+
+    private final int mTileSize;
+    private final int mRadius;
+    private final float[] mKernel;
+    private final int[] mColorMap;
+
+    /** World coordinates in [0, 1), sorted by x. */
+    private final double[] mXs;
+    private final double[] mYs;
+
+    /** Maximum smoothed intensity per zoom level, or 0 if not computed yet. */
+    private final float[] mMaxIntensities = new float[32];
+
+    /**
+     * @param tileSize The tile width and height, in pixels.
+     * @param radius The kernel radius, in pixels. The Gaussian's standard
+     *        deviation is a third of this.
+     */
+    public HeatmapRasterizer(PlaceColumns columns, int tileSize, int radius) {
+        mTileSize = tileSize;
+        mRadius = radius;
+        mKernel = gaussianKernel(radius);
+        mColorMap = colorMap();
+
+        // Sort by x, carrying the place index in the low bits of the key.
+        int n = columns.size;
+        long[] keys = new long[n];
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        for (int i = 0; i < n; i++) {
+            xs[i] = worldX(columns.lngs[i]);
+            ys[i] = worldY(columns.lats[i]);
+            keys[i] = ((long) (xs[i] * Integer.MAX_VALUE) << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        mXs = new double[n];
+        mYs = new double[n];
+        for (int k = 0; k < n; k++) {
+            int i = (int) keys[k];
+            mXs[k] = xs[i];
+            mYs[k] = ys[i];
+        }
+    }
+
+    public int getTileSize() {
+        return mTileSize;
+    }
+
+    /**
+     * Render a tile.
+     *
+     * @return The ARGB pixels of the tile, row by row, or null if the tile
+     *         has no places near it.
+     */
+    public int[] render(int x, int y, int zoom) {
+        int size = mTileSize + 2 * mRadius;
+        float[] density = new float[size * size];
+        if (bin(x, y, zoom, density) == 0) {
+            return null;
+        }
+
+        density = blur(density, size);
+
+        float scale = (COLORS - 1) / getMaxIntensity(zoom);
+        int[] pixels = new int[mTileSize * mTileSize];
+        for (int row = 0; row < mTileSize; row++) {
+            int from = (row + mRadius) * size + mRadius;
+            for (int column = 0; column < mTileSize; column++) {
+                int color = (int) (density[from + column] * scale);
+                pixels[row * mTileSize + column] = mColorMap[Math.min(COLORS - 1, color)];
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Count the places per pixel of the tile and a margin of the kernel
+     * radius around it.
+     *
+     * @return The number of places counted.
+     */
+    private int bin(int x, int y, int zoom, float[] density) {
+        int size = mTileSize + 2 * mRadius;
+        double worldPixels = (double) mTileSize * (1 << zoom);
+        double left = (x * (double) mTileSize - mRadius) / worldPixels;
+        double top = (y * (double) mTileSize - mRadius) / worldPixels;
+        double span = size / worldPixels;
+
+        int count = 0;
+        for (int k = lowerBound(mXs, left); k < mXs.length && mXs[k] < left + span; k++) {
+            double py = mYs[k];
+            if (py < top || py >= top + span) {
+                continue;
+            }
+            int column = (int) ((mXs[k] - left) * worldPixels);
+            int row = (int) ((py - top) * worldPixels);
+            if (column < size && row < size) {
+                density[row * size + column]++;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Apply the kernel to the rows, then to the columns. */
+    private float[] blur(float[] density, int size) {
+        float[] rows = new float[size * size];
+        for (int row = 0; row < size; row++) {
+            int start = row * size;
+            for (int column = 0; column < size; column++) {
+                float value = density[start + column];
+                if (value == 0) {
+                    continue;
+                }
+                int from = Math.max(0, column - mRadius);
+                int to = Math.min(size - 1, column + mRadius);
+                for (int c = from; c <= to; c++) {
+                    rows[start + c] += value * mKernel[c - column + mRadius];
+                }
+            }
+        }
+
+        float[] blurred = new float[size * size];
+        for (int row = 0; row < size; row++) {
+            int from = Math.max(0, row - mRadius);
+            int to = Math.min(size - 1, row + mRadius);
+            for (int r = from; r <= to; r++) {
+                float weight = mKernel[r - row + mRadius];
+                int source = row * size;
+                int target = r * size;
+                for (int column = 0; column < size; column++) {
+                    blurred[target + column] += rows[source + column] * weight;
+                }
+            }
+        }
+        return blurred;
+    }
+
+    /**
+     * Estimate the maximum intensity at a zoom level from the most crowded
+     * cell of kernel-radius-sized cells, times the kernel's peak.
+     */
+    private float getMaxIntensity(int zoom) {
+        synchronized (mMaxIntensities) {
+            if (mMaxIntensities[zoom] > 0) {
+                return mMaxIntensities[zoom];
+            }
+        }
+
+        double cells = (double) mTileSize * (1 << zoom) / Math.max(1, mRadius);
+        long[] keys = new long[mXs.length];
+        for (int k = 0; k < keys.length; k++) {
+            keys[k] = ((long) (mXs[k] * cells) << 32) | (long) (mYs[k] * cells);
+        }
+        Arrays.sort(keys);
+
+        int max = 1;
+        for (int k = 0, run = 0; k < keys.length; k++) {
+            run = k > 0 && keys[k] == keys[k - 1] ? run + 1 : 1;
+            max = Math.max(max, run);
+        }
+
+        float peak = mKernel[mRadius] * mKernel[mRadius];
+        float intensity = max * peak;
+        synchronized (mMaxIntensities) {
+            mMaxIntensities[zoom] = intensity;
+        }
+        return intensity;
+    }
+
+    private static int lowerBound(double[] values, double key) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static float[] gaussianKernel(int radius) {
+        float[] kernel = new float[2 * radius + 1];
+        double sigma = Math.max(1, radius / 3.0);
+        for (int i = -radius; i <= radius; i++) {
+            kernel[i + radius] = (float) Math.exp(-i * i / (2 * sigma * sigma));
+        }
+        return kernel;
+    }
+
+    /**
+     * Return a color map from transparent green through yellow to opaque red.
+     */
+    private static int[] colorMap() {
+        int[] colors = new int[COLORS];
+        for (int i = 0; i < COLORS; i++) {
+            float t = i / (float) (COLORS - 1);
+            int alpha = i == 0 ? 0 : (int) (255 * Math.min(1, 0.3f + t));
+            int red = (int) (255 * Math.min(1, 2 * t));
+            int green = (int) (255 * Math.min(1, 2 * (1 - t)));
+            colors[i] = (alpha << 24) | (red << 16) | (green << 8);
+        }
+        return colors;
+    }
+
+    private static double worldX(double lng) {
+        return (lng + 180) / 360;
+    }
+
+    private static double worldY(double lat) {
+        double sin = Math.sin(Math.toRadians(Math.max(-85, Math.min(85, lat))));
+        return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Finds the places reachable within a walking time, by running Dijkstra over a
+ * {@link StreetGraph} from an origin and stopping at the time limit. Each
+ * place is attached to its nearest street node when the engine is built.
+ * <p>
+ * Queries are thread-safe; each thread reuses its own search state, so
+ * several origins can be queried in parallel.
+ */
+public class IsochroneEngine {
+    private final StreetGraph mGraph;
+    private final Place[] mPlaces;
+
+    /** Places at node n are mNodePlaces[mPlaceOffsets[n]..mPlaceOffsets[n + 1]). */
+    private final int[] mPlaceOffsets;
+    private final int[] mNodePlaces;
+
+    private final ThreadLocal<Search> mSearches = new ThreadLocal<Search>() {
+        @Override
+        protected Search initialValue() {
+            return new Search(mGraph.getNodeCount());
+        }
+    };
+
+    public IsochroneEngine(StreetGraph graph, List<Place> places) {
+        mGraph = graph;
+        mPlaces = places.toArray(new Place[places.size()]);
+
+        int nodeCount = graph.getNodeCount();
+        int[] placeNodes = new int[mPlaces.length];
+        mPlaceOffsets = new int[nodeCount + 1];
+        for (int i = 0; i < mPlaces.length; i++) {
+            placeNodes[i] = graph.nearestNode(mPlaces[i].lat, mPlaces[i].lng);
+            if (placeNodes[i] >= 0) {
+                mPlaceOffsets[placeNodes[i] + 1]++;
+            }
+        }
+        for (int n = 0; n < nodeCount; n++) {
+            mPlaceOffsets[n + 1] += mPlaceOffsets[n];
+        }
+
+        mNodePlaces = new int[mPlaceOffsets[nodeCount]];
+        int[] fill = new int[nodeCount];
+        System.arraycopy(mPlaceOffsets, 0, fill, 0, nodeCount);
+        for (int i = 0; i < mPlaces.length; i++) {
+            if (placeNodes[i] >= 0) {
+                mNodePlaces[fill[placeNodes[i]]++] = i;
+            }
+        }
+    }
+
+    /**
+     * Return the places reachable on foot from a point within the time limit,
+     * nearest first. Places not near any street are never reachable.
+     */
+    public List<Place> getReachablePlaces(double lat, double lng, int minutes) {
+        List<Place> places = new ArrayList<Place>();
+        int origin = mGraph.nearestNode(lat, lng);
+        if (origin < 0) {
+            return places;
+        }
+
+        Search search = mSearches.get();
+        search.run(mGraph, origin, minutes * 60f);
+
+        // Nodes are settled in order of walking time.
+        for (int i = 0; i < search.mSettledCount; i++) {
+            int node = search.mSettled[i];
+            for (int p = mPlaceOffsets[node]; p < mPlaceOffsets[node + 1]; p++) {
+                places.add(mPlaces[mNodePlaces[p]]);
+            }
+        }
+        return places;
+    }
+
+    /**
+     * Query several origins in parallel on the executor.
+     *
+     * @return The reachable places for each origin, in the same order.
+     */
+    public List<List<Place>> getReachablePlaces(double[] lats, double[] lngs, final int minutes,
+            ExecutorService executor) throws InterruptedException {
+        List<Future<List<Place>>> futures = new ArrayList<Future<List<Place>>>(lats.length);
+        for (int i = 0; i < lats.length; i++) {
+            final double lat = lats[i];
+            final double lng = lngs[i];
+            futures.add(executor.submit(new Callable<List<Place>>() {
+                @Override
+                public List<Place> call() {
+                    return getReachablePlaces(lat, lng, minutes);
+                }
+            }));
+        }
+
+        List<List<Place>> results = new ArrayList<List<Place>>(lats.length);
+        for (Future<List<Place>> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Per-thread Dijkstra state. Uses a generation stamp per node instead of
+     * clearing the arrays, so a query only touches the nodes it reaches.
+     */
+    private static class Search {
+        private final float[] mSeconds;
+        private final int[] mStamps;
+        private int mStamp = 0;
+
+        /** Position of each node in the heap, or -1 once settled. */
+        private final int[] mHeapIndex;
+        private int[] mHeap = new int[1024];
+        private int mHeapSize;
+
+        private int[] mSettled = new int[1024];
+        private int mSettledCount;
+
+        Search(int nodeCount) {
+            mSeconds = new float[nodeCount];
+            mStamps = new int[nodeCount];
+            mHeapIndex = new int[nodeCount];
+        }
+
+        void run(StreetGraph graph, int origin, float maxSeconds) {
+            if (++mStamp == 0) {
+                // The stamp wrapped around; start afresh.
+                Arrays.fill(mStamps, 0);
+                mStamp = 1;
+            }
+            mHeapSize = 0;
+            mSettledCount = 0;
+
+            reach(origin, 0f);
+            while (mHeapSize > 0) {
+                int node = pop();
+                float seconds = mSeconds[node];
+
+                if (mSettledCount == mSettled.length) {
+                    mSettled = grow(mSettled);
+                }
+                mSettled[mSettledCount++] = node;
+
+                for (int e = graph.getEdgeStart(node); e < graph.getEdgeEnd(node); e++) {
+                    float candidate = seconds + graph.getEdgeSeconds(e);
+                    if (candidate <= maxSeconds) {
+                        reach(graph.getEdgeTarget(e), candidate);
+                    }
+                }
+            }
+        }
+
+        /** Record a path to the node, if it's the first or a shorter one. */
+        private void reach(int node, float seconds) {
+            if (mStamps[node] != mStamp) {
+                mStamps[node] = mStamp;
+                mSeconds[node] = seconds;
+                if (mHeapSize == mHeap.length) {
+                    mHeap = grow(mHeap);
+                }
+                mHeap[mHeapSize] = node;
+                mHeapIndex[node] = mHeapSize;
+                siftUp(mHeapSize++);
+            } else if (mHeapIndex[node] >= 0 && seconds < mSeconds[node]) {
+                mSeconds[node] = seconds;
+                siftUp(mHeapIndex[node]);
+            }
+        }
+
+        private int pop() {
+            int top = mHeap[0];
+            mHeapIndex[top] = -1;
+            int last = mHeap[--mHeapSize];
+            if (mHeapSize > 0) {
+                mHeap[0] = last;
+                mHeapIndex[last] = 0;
+                siftDown(0);
+            }
+            return top;
+        }
+
+        private void siftUp(int i) {
+            int node = mHeap[i];
+            float seconds = mSeconds[node];
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                int parentNode = mHeap[parent];
+                if (mSeconds[parentNode] <= seconds) {
+                    break;
+                }
+                mHeap[i] = parentNode;
+                mHeapIndex[parentNode] = i;
+                i = parent;
+            }
+            mHeap[i] = node;
+            mHeapIndex[node] = i;
+        }
+
+        private void siftDown(int i) {
+            int node = mHeap[i];
+            float seconds = mSeconds[node];
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= mHeapSize) {
+                    break;
+                }
+                if (child + 1 < mHeapSize && mSeconds[mHeap[child + 1]] < mSeconds[mHeap[child]]) {
+                    child++;
+                }
+                int childNode = mHeap[child];
+                if (mSeconds[childNode] >= seconds) {
+                    break;
+                }
+                mHeap[i] = childNode;
+                mHeapIndex[childNode] = i;
+                i = child;
+            }
+            mHeap[i] = node;
+            mHeapIndex[node] = i;
+        }
+
+        private static int[] grow(int[] array) {
+            int[] grown = new int[array.length * 2];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            return grown;
+        }
+    }
+
+    /** Return the approximate size of the engine, including its graph, in bytes. */
+    public long getByteCount() {
+        return mGraph.getByteCount() + 4L * mPlaces.length + 4L * mPlaceOffsets.length
+                + 4L * mNodePlaces.length;
+    }
+}
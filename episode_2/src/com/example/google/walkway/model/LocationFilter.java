@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway.model;
+
+/**
+ * Smooths a stream of location fixes with a Kalman filter. Between fixes,
+ * the uncertainty of the position grows by the distance that could have been
+ * covered at the given speed, and each fix is weighted by its reported
+ * accuracy; so an inaccurate fix barely moves the estimate, while after a
+ * pause the next fix is mostly taken as is. The model has no velocity, so
+ * frequent inaccurate fixes of a steady walker are trailed by a few seconds
+ * of walking.
+ * <p>
+ * Not thread-safe.
+ */
+public class LocationFilter {
+    /** Fixes are never trusted more than this, in meters. */
+    private static final double MIN_ACCURACY = 1;
+
+    private final double mSpeed;
+
+    private double mLat;
+    private double mLng;
+    private long mTimeMillis;
+
+    /** The variance of the estimate, in square meters; negative before the first fix. */
+    private double mVariance = -1;
+
+    /**
+     * @param speed How fast the position is expected to change, in meters
+     *        per second, e.g. a brisk walking pace.
+     */
+    public LocationFilter(double speed) {
+        mSpeed = speed;
+    }
+
+    /**
+     * Add a fix.
+     *
+     * @param accuracy The accuracy of the fix, in meters.
+     * @param timeMillis The time of the fix.
+     */
+    public void update(double lat, double lng, double accuracy, long timeMillis) {
+        double measurementVariance = Math.max(accuracy, MIN_ACCURACY);
+        measurementVariance *= measurementVariance;
+
+        if (mVariance < 0) {
+            mLat = lat;
+            mLng = lng;
+            mTimeMillis = timeMillis;
+            mVariance = measurementVariance;
+            return;
+        }
+
+        long elapsed = timeMillis - mTimeMillis;
+        if (elapsed > 0) {
+            // The walker may have moved up to speed * elapsed meters.
+            double moved = mSpeed * elapsed / 1000;
+            mVariance += moved * moved;
+            mTimeMillis = timeMillis;
+        }
+
+        // Step across the antimeridian rather than around the world.
+        double dLng = lng - mLng;
+        if (dLng > 180) {
+            dLng -= 360;
+        } else if (dLng < -180) {
+            dLng += 360;
+        }
+
+        double gain = mVariance / (mVariance + measurementVariance);
+        mLat += gain * (lat - mLat);
+        mLng += gain * dLng;
+        if (mLng > 180) {
+            mLng -= 360;
+        } else if (mLng < -180) {
+            mLng += 360;
+        }
+        mVariance *= 1 - gain;
+    }
+
+    /** Forget the fixes so far. */
+    public void reset() {
+        mVariance = -1;
+    }
+
+    public boolean hasFix() {
+        return mVariance >= 0;
+    }
+
+    public double getLat() {
+        return mLat;
+    }
+
+    public double getLng() {
+        return mLng;
+    }
+
+    /** Return the accuracy of the estimate, in meters. */
+    public double getAccuracy() {
+        return Math.sqrt(mVariance);
+    }
+}
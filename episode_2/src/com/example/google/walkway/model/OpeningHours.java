@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway.model;
+
+import java.util.Arrays;
+import java.util.Calendar;
+
+/**
+ * Weekly opening hours, at a resolution of 15-minute slots. Slot 0 starts at
+ * midnight at the start of Sunday, local time.
+ */
+public class OpeningHours {
+    public static final int SLOT_MINUTES = 15;
+    public static final int SLOTS_PER_DAY = 24 * 60 / SLOT_MINUTES;
+    public static final int SLOTS_PER_WEEK = 7 * SLOTS_PER_DAY;
+
+    /** One bit per slot, set if open. */
+    private final long[] mSlots = new long[(SLOTS_PER_WEEK + 63) / 64];
+
+    /** Return the slot of a time of the week. */
+    public static int slotOf(Calendar time) {
+        int day = time.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY;
+        int minute = time.get(Calendar.HOUR_OF_DAY) * 60 + time.get(Calendar.MINUTE);
+        return day * SLOTS_PER_DAY + minute / SLOT_MINUTES;
+    }
+
+    /**
+     * Add an opening period. Times are rounded to slots: a place counts as
+     * open in a slot if it opens at or before the slot's start.
+     *
+     * @param day The day, e.g. Calendar.MONDAY.
+     * @param openMinute The opening time, in minutes after midnight.
+     * @param closeMinute The closing time, in minutes after midnight; past
+     *        24 * 60 if the place closes after midnight.
+     * @return This object, for chaining.
+     */
+    public OpeningHours add(int day, int openMinute, int closeMinute) {
+        int start = (day - Calendar.SUNDAY) * SLOTS_PER_DAY
+                + (openMinute + SLOT_MINUTES - 1) / SLOT_MINUTES;
+        int end = (day - Calendar.SUNDAY) * SLOTS_PER_DAY
+                + (closeMinute + SLOT_MINUTES - 1) / SLOT_MINUTES;
+        for (int slot = start; slot < end; slot++) {
+            int s = slot % SLOTS_PER_WEEK; // Saturday night wraps to Sunday.
+            mSlots[s >>> 6] |= 1L << s;
+        }
+        return this;
+    }
+
+    /** Add the same opening period to several days. */
+    public OpeningHours add(int[] days, int openMinute, int closeMinute) {
+        for (int day : days) {
+            add(day, openMinute, closeMinute);
+        }
+        return this;
+    }
+
+    public boolean isOpen(int slot) {
+        return (mSlots[slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    public boolean isOpen(Calendar time) {
+        return isOpen(slotOf(time));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof OpeningHours && Arrays.equals(mSlots, ((OpeningHours) o).mSlots);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(mSlots);
+    }
+}
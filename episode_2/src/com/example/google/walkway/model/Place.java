@@ -21,6 +21,9 @@ package com.example.google.walkway.model;
  * A value object to encapsulate the information for a place.
  */
 public class Place {
+    /** The unique, stable identifier of the place. */
+    public String id;
+    
     /** The name of the place. */
     public String name;
     
@@ -32,6 +35,9 @@ public class Place {
     
     /** The type of the place. */
     public PlaceType type;
+    
+    /** The weekly opening hours of the place, or null if unknown. */
+    public OpeningHours hours;
 
     public enum PlaceType {
         PARK,
@@ -48,6 +54,11 @@ public class Place {
     }
     
     public Place(String name, double lat, double lng, PlaceType type) {
+        this(name, name, lat, lng, type);
+    }
+    
+    public Place(String id, String name, double lat, double lng, PlaceType type) {
+        this.id = id;
         this.name = name;
         this.lat = lat;
         this.lng = lng;
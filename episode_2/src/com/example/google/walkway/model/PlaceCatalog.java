@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway.model;
+
+import java.util.AbstractList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A catalog of places that can be read from any thread while it is being
+ * updated. Each update copies the catalog and publishes the result as a new,
+ * immutable {@link Snapshot}, so readers never lock and never see a partially
+ * applied {@link Batch}.
+ * <p>
+ * Places in a snapshot must not be modified; upsert a new Place instead.
+ */
+public class PlaceCatalog {
+    private final AtomicReference<Snapshot> mSnapshot =
+            new AtomicReference<Snapshot>(new Snapshot(0, new Place[0]));
+
+    /** Return the current snapshot. Never blocks. */
+    public Snapshot getSnapshot() {
+        return mSnapshot.get();
+    }
+
+    /**
+     * Apply the upserts and deletes in the batch atomically and publish the
+     * result. Writers are serialized; readers are not affected.
+     *
+     * @return The new snapshot.
+     */
+    public synchronized Snapshot apply(Batch batch) {
+        Snapshot current = mSnapshot.get();
+        if (batch.mOps.isEmpty()) {
+            return current;
+        }
+
+        Place[] places = new Place[current.mPlaces.length + batch.mOps.size()];
+        System.arraycopy(current.mPlaces, 0, places, 0, current.mPlaces.length);
+        int size = current.mPlaces.length;
+        boolean deleted = false;
+
+        for (Place place : batch.mOps.values()) {
+            // Deletes are recorded as null places.
+            if (place == null) {
+                deleted = true;
+                continue;
+            }
+
+            int index = current.indexOf(place.id);
+            if (index >= 0) {
+                places[index] = place;
+            } else {
+                places[size++] = place;
+            }
+        }
+
+        if (deleted) {
+            // Compact the remaining places, preserving their order.
+            int j = 0;
+            for (int i = 0; i < size; i++) {
+                Place place = places[i];
+                if (batch.mOps.get(place.id) != null || !batch.mOps.containsKey(place.id)) {
+                    places[j++] = place;
+                }
+            }
+            size = j;
+        }
+
+        if (size != places.length) {
+            Place[] trimmed = new Place[size];
+            System.arraycopy(places, 0, trimmed, 0, size);
+            places = trimmed;
+        }
+
+        Snapshot next = new Snapshot(current.version + 1, places);
+        mSnapshot.set(next);
+        return next;
+    }
+
+    /**
+     * An immutable, versioned view of the catalog.
+     */
+    public static final class Snapshot {
+        /** Incremented by every batch that is applied. */
+        public final long version;
+
+        private final Place[] mPlaces;
+
+        /** Lazily built id index. Racy initialization is safe; it's immutable. */
+        private volatile HashMap<String, Integer> mIndexById;
+
+        private Snapshot(long version, Place[] places) {
+            this.version = version;
+            mPlaces = places;
+        }
+
+        public int size() {
+            return mPlaces.length;
+        }
+
+        public Place get(int index) {
+            return mPlaces[index];
+        }
+
+        /** Return the place with the id, or null if there isn't one. */
+        public Place get(String id) {
+            int index = indexOf(id);
+            return index < 0 ? null : mPlaces[index];
+        }
+
+        /** Return the index of the place with the id, or -1 if there isn't one. */
+        public int indexOf(String id) {
+            Integer index = getIndexById().get(id);
+            return index == null ? -1 : index;
+        }
+
+        /**
+         * Build the id index now, if it isn't built yet, rather than on the
+         * first lookup, e.g. on a background thread for a large snapshot.
+         */
+        public void buildIndex() {
+            getIndexById();
+        }
+
+        private HashMap<String, Integer> getIndexById() {
+            HashMap<String, Integer> indexById = mIndexById;
+            if (indexById == null) {
+                indexById = new HashMap<String, Integer>(mPlaces.length * 2);
+                for (int i = 0; i < mPlaces.length; i++) {
+                    indexById.put(mPlaces[i].id, i);
+                }
+                mIndexById = indexById;
+            }
+            return indexById;
+        }
+
+        /** Return the places in catalog order, as a read-only list. */
+        public List<Place> getPlaces() {
+            return new AbstractList<Place>() {
+                @Override
+                public Place get(int index) {
+                    return mPlaces[index];
+                }
+
+                @Override
+                public int size() {
+                    return mPlaces.length;
+                }
+            };
+        }
+    }
+
+    /**
+     * A set of upserts and deletes to apply to the catalog in one step. Later
+     * operations on the same place id replace earlier ones.
+     */
+    public static final class Batch {
+        private final LinkedHashMap<String, Place> mOps = new LinkedHashMap<String, Place>();
+
+        /** Add the place, or replace the place with the same id. */
+        public Batch upsert(Place place) {
+            mOps.remove(place.id);
+            mOps.put(place.id, place);
+            return this;
+        }
+
+        public Batch upsertAll(List<Place> places) {
+            for (Place place : places) {
+                upsert(place);
+            }
+            return this;
+        }
+
+        /** Remove the place with the id, if there is one. */
+        public Batch delete(String id) {
+            mOps.remove(id);
+            mOps.put(id, null);
+            return this;
+        }
+
+        public int size() {
+            return mOps.size();
+        }
+    }
+}
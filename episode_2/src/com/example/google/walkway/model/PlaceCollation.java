@@ -0,0 +1,462 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway.model;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * The alphabetical order of the places of a catalog snapshot by name, as
+ * collated for a locale.
+ * <p>
+ * Each name's collation key is computed once, and packed together with the
+ * place index into a long: the leading bytes of the key in the high bits and
+ * the index in the low bits. The packed words are sorted as primitives, in
+ * chunks in parallel and then merged, so the collator is never called per
+ * comparison. Only the packed words are kept while sorting; the keys of
+ * runs of places whose leading key bytes tie are computed again, and the
+ * runs sorted the same way on the bytes that follow. What is kept is a rank
+ * per place, so any list of the snapshot's places can be sorted, or merged
+ * into a sorted list, by comparing ints.
+ * <p>
+ * The order of a later snapshot can be derived with {@link #update}, which
+ * only keys the places that were added or renamed.
+ * <p>
+ * Immutable, and so thread-safe, once built.
+ */
+public class PlaceCollation {
+    /** Number of chunks the words are sorted in. */
+    private static final int CHUNKS = 16;
+
+    /** Snapshots larger than this would leave too few bits for the key prefix. */
+    public static final int MAX_PLACES = 1 << 24;
+
+    /** Updates that change more than this share of the places start over. */
+    private static final int UPDATE_MAX_CHANGED_DIVISOR = 4;
+
+    private final PlaceCatalog.Snapshot mSnapshot;
+    private final Locale mLocale;
+
+    /** The rank of each place, by snapshot index. */
+    private final int[] mRanks;
+
+    private final int mTieCount;
+    private final long mBuildMillis;
+
+    /** The number of places keyed by update(), or -1 if built from scratch. */
+    private final int mUpdatedCount;
+
+    /**
+     * Compute the order. This can be slow for large snapshots; call it from a
+     * background thread.
+     *
+     * @param executor Computes the keys and sorts the chunks in parallel.
+     */
+    public PlaceCollation(PlaceCatalog.Snapshot snapshot, Locale locale,
+            ExecutorService executor) throws InterruptedException {
+        final int n = snapshot.size();
+        if (n > MAX_PLACES) {
+            throw new IllegalArgumentException("Too many places to collate: " + n);
+        }
+        long start = System.currentTimeMillis();
+        mSnapshot = snapshot;
+        mLocale = locale;
+
+        final Collator collator = Collator.getInstance(locale);
+        final int indexBits = Math.max(1, 32 - Integer.numberOfLeadingZeros(n - 1));
+        final long[] words = new long[n];
+
+        // Key and sort each chunk. Collators aren't thread-safe, so each task
+        // has its own clone.
+        int chunkSize = Math.max(1, (n + CHUNKS - 1) / CHUNKS);
+        List<Future<?>> futures = new ArrayList<Future<?>>(CHUNKS);
+        for (int from = 0; from < n; from += chunkSize) {
+            final int first = from;
+            final int last = Math.min(n, from + chunkSize);
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    Collator chunkCollator = (Collator) collator.clone();
+                    for (int i = first; i < last; i++) {
+                        byte[] key = chunkCollator.getCollationKey(mSnapshot.get(i).name)
+                                .toByteArray();
+                        words[i] = pack(key, 0, i, indexBits);
+                    }
+                    Arrays.sort(words, first, last);
+                    return null;
+                }
+            }));
+        }
+        await(futures);
+
+        // Merge pairs of sorted runs until one is left, each round in parallel.
+        long[] source = words;
+        long[] target = new long[n];
+        for (int width = chunkSize; width < n; width *= 2) {
+            futures.clear();
+            for (int from = 0; from < n; from += 2 * width) {
+                final long[] src = source;
+                final long[] dst = target;
+                final int lo = from;
+                final int mid = Math.min(n, from + width);
+                final int hi = Math.min(n, from + 2 * width);
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        merge(src, lo, mid, hi, dst);
+                        return null;
+                    }
+                }));
+            }
+            await(futures);
+            long[] swap = source;
+            source = target;
+            target = swap;
+        }
+
+        mRanks = new int[n];
+        int[] order = new int[n];
+        long indexMask = (1L << indexBits) - 1;
+        for (int r = 0; r < n; r++) {
+            order[r] = (int) (source[r] & indexMask);
+        }
+        mTieCount = breakTies(source, order, collator, indexBits);
+        for (int r = 0; r < n; r++) {
+            mRanks[order[r]] = r;
+        }
+        snapshot.buildIndex();
+        mUpdatedCount = -1;
+        mBuildMillis = System.currentTimeMillis() - start;
+    }
+
+    private PlaceCollation(PlaceCatalog.Snapshot snapshot, Locale locale, int[] ranks,
+            int tieCount, int updatedCount, long buildMillis) {
+        mSnapshot = snapshot;
+        mLocale = locale;
+        mRanks = ranks;
+        mTieCount = tieCount;
+        mUpdatedCount = updatedCount;
+        mBuildMillis = buildMillis;
+    }
+
+    /**
+     * Compute the order of a later snapshot of the same catalog. The places
+     * whose names are unchanged keep their relative order. Only the added and
+     * renamed places are keyed and sorted, and each is then put in place by a
+     * binary search over the others, so updates that add a few places are
+     * cheap. Updates that change many places compute the order from scratch.
+     * Like the constructor, call it from a background thread.
+     */
+    public PlaceCollation update(PlaceCatalog.Snapshot snapshot, ExecutorService executor)
+            throws InterruptedException {
+        long start = System.currentTimeMillis();
+        int n = snapshot.size();
+        long[] kept = new long[n];
+        int keptCount = 0;
+        int[] changed = new int[n];
+        int changedCount = 0;
+        for (int i = 0; i < n; i++) {
+            Place place = snapshot.get(i);
+            int previous = mSnapshot.indexOf(place.id);
+            if (previous >= 0 && mSnapshot.get(previous).name.equals(place.name)) {
+                kept[keptCount++] = (long) mRanks[previous] << 32 | i;
+            } else {
+                changed[changedCount++] = i;
+            }
+        }
+        if (changedCount > n / UPDATE_MAX_CHANGED_DIVISOR) {
+            return new PlaceCollation(snapshot, mLocale, executor);
+        }
+
+        // The kept places in their previous order.
+        Arrays.sort(kept, 0, keptCount);
+        int[] keptOrder = new int[keptCount];
+        for (int k = 0; k < keptCount; k++) {
+            keptOrder[k] = (int) kept[k];
+        }
+
+        // The changed places in order; the sort is stable, so equal keys stay
+        // in index order.
+        Collator collator = Collator.getInstance(mLocale);
+        final CollationKey[] keys = new CollationKey[n];
+        Integer[] changedOrder = new Integer[changedCount];
+        for (int c = 0; c < changedCount; c++) {
+            keys[changed[c]] = collator.getCollationKey(snapshot.get(changed[c]).name);
+            changedOrder[c] = changed[c];
+        }
+        Arrays.sort(changedOrder, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return keys[a].compareTo(keys[b]);
+            }
+        });
+
+        // Merge, after the kept places with equal names.
+        int[] order = new int[n];
+        int r = 0;
+        int k = 0;
+        for (int c = 0; c < changedCount; c++) {
+            int i = changedOrder[c];
+            int low = k;
+            int high = keptCount;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (collator.compare(snapshot.get(keptOrder[mid]).name,
+                        snapshot.get(i).name) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            while (k < low) {
+                order[r++] = keptOrder[k++];
+            }
+            order[r++] = i;
+        }
+        while (k < keptCount) {
+            order[r++] = keptOrder[k++];
+        }
+
+        int[] ranks = new int[n];
+        for (r = 0; r < n; r++) {
+            ranks[order[r]] = r;
+        }
+        snapshot.buildIndex();
+        return new PlaceCollation(snapshot, mLocale, ranks, mTieCount, changedCount,
+                System.currentTimeMillis() - start);
+    }
+
+    /** Return the version of the snapshot the order is of. */
+    public long getVersion() {
+        return mSnapshot.version;
+    }
+
+    public Locale getLocale() {
+        return mLocale;
+    }
+
+    /**
+     * Return the rank of the place in the order, or Integer.MAX_VALUE if it
+     * isn't in the snapshot.
+     */
+    public int getRank(Place place) {
+        int index = mSnapshot.indexOf(place.id);
+        return index < 0 ? Integer.MAX_VALUE : mRanks[index];
+    }
+
+    /**
+     * Return the places in order. Places that aren't in the snapshot go last,
+     * in their original order.
+     */
+    public List<Place> sort(List<Place> places) {
+        int size = places.size();
+        long[] ranked = new long[size];
+        for (int i = 0; i < size; i++) {
+            ranked[i] = (long) getRank(places.get(i)) << 32 | i;
+        }
+        Arrays.sort(ranked);
+
+        List<Place> sorted = new ArrayList<Place>(size);
+        for (long word : ranked) {
+            sorted.add(places.get((int) word));
+        }
+        return sorted;
+    }
+
+    /**
+     * Add places to a sorted list, keeping it sorted. Only the added places
+     * are sorted; they are then merged with the list in a single pass.
+     * Removing places from a sorted list keeps it sorted, so needs no help.
+     */
+    public void merge(List<Place> sorted, List<Place> added) {
+        if (added.isEmpty()) {
+            return;
+        }
+        List<Place> addedSorted = sort(added);
+        List<Place> merged = new ArrayList<Place>(sorted.size() + added.size());
+        int i = 0;
+        int j = 0;
+        int rankI = i < sorted.size() ? getRank(sorted.get(i)) : 0;
+        int rankJ = getRank(addedSorted.get(j));
+        while (i < sorted.size() && j < addedSorted.size()) {
+            if (rankJ < rankI) {
+                merged.add(addedSorted.get(j++));
+                rankJ = j < addedSorted.size() ? getRank(addedSorted.get(j)) : 0;
+            } else {
+                merged.add(sorted.get(i++));
+                rankI = i < sorted.size() ? getRank(sorted.get(i)) : 0;
+            }
+        }
+        merged.addAll(sorted.subList(i, sorted.size()));
+        merged.addAll(addedSorted.subList(j, addedSorted.size()));
+
+        sorted.clear();
+        sorted.addAll(merged);
+    }
+
+    @Override
+    public String toString() {
+        if (mUpdatedCount >= 0) {
+            return String.format("%d places (%s) updated in %dms, %d keyed", mRanks.length,
+                    mLocale, mBuildMillis, mUpdatedCount);
+        }
+        return String.format("%d places (%s) collated in %dms, %d prefix ties", mRanks.length,
+                mLocale, mBuildMillis, mTieCount);
+    }
+
+    /**
+     * Pack 8 bytes of the key, from an offset, into the high bits and the
+     * index into the low bits, flipping the sign bit so that signed order is
+     * unsigned key order. Keys are padded with zeros.
+     */
+    private static long pack(byte[] key, int offset, int index, int indexBits) {
+        long prefix = 0;
+        for (int b = offset; b < offset + 8; b++) {
+            prefix = prefix << 8 | (b < key.length ? key[b] & 0xff : 0);
+        }
+        return ((prefix >>> indexBits) << indexBits | index) ^ Long.MIN_VALUE;
+    }
+
+    private static void merge(long[] src, int lo, int mid, int hi, long[] dst) {
+        int i = lo;
+        int j = mid;
+        for (int k = lo; k < hi; k++) {
+            if (j >= hi || (i < mid && src[i] <= src[j])) {
+                dst[k] = src[i++];
+            } else {
+                dst[k] = src[j++];
+            }
+        }
+    }
+
+    /**
+     * Order the runs of places whose packed words tie by the key bytes that
+     * follow the packed ones. The keys of the places in such runs are
+     * computed again, run by run.
+     *
+     * @param words The sorted words of the places in order.
+     * @param order The snapshot indexes of the places in order.
+     * @return The number of places in such runs.
+     */
+    private int breakTies(long[] words, int[] order, Collator collator, int indexBits) {
+        // Only whole bytes are known to be equal within a run.
+        int next = (64 - indexBits) / 8;
+        int ties = 0;
+        for (int start = 0; start < words.length;) {
+            int end = start + 1;
+            while (end < words.length && words[end] >>> indexBits == words[start] >>> indexBits) {
+                end++;
+            }
+            if (end - start > 1) {
+                int size = end - start;
+                byte[][] keys = new byte[size][];
+                int[] runOrder = new int[size];
+                for (int k = 0; k < size; k++) {
+                    runOrder[k] = order[start + k];
+                    keys[k] = collator.getCollationKey(mSnapshot.get(runOrder[k]).name)
+                            .toByteArray();
+                }
+                if (sortRun(keys, runOrder, 0, size, next)) {
+                    ties += size;
+                    System.arraycopy(runOrder, 0, order, start, size);
+                }
+            }
+            start = end;
+        }
+        return ties;
+    }
+
+    /**
+     * Sort a run of places whose keys are equal before an offset by the key
+     * bytes from the offset on, recursively. Places with equal keys stay in
+     * run order.
+     *
+     * @param keys The keys of the places, in order; the run is reordered
+     *        along with the places.
+     * @param order The snapshot indexes of the places.
+     * @param from The start of the run.
+     * @param to The end of the run, exclusive.
+     * @return false if no key of the run has bytes from the offset, so there
+     *         was nothing to sort.
+     */
+    private static boolean sortRun(byte[][] keys, int[] order, int from, int to, int offset) {
+        if (!hasBytesFrom(keys, from, to, offset)) {
+            return false;
+        }
+
+        // Positions within the run are in order, so the sort is stable.
+        int size = to - from;
+        int runBits = Math.max(1, 32 - Integer.numberOfLeadingZeros(size - 1));
+        long[] words = new long[size];
+        for (int k = 0; k < size; k++) {
+            words[k] = pack(keys[from + k], offset, k, runBits);
+        }
+        Arrays.sort(words);
+
+        byte[][] sortedKeys = new byte[size][];
+        int[] sortedOrder = new int[size];
+        long mask = (1L << runBits) - 1;
+        for (int k = 0; k < size; k++) {
+            int position = from + (int) (words[k] & mask);
+            sortedKeys[k] = keys[position];
+            sortedOrder[k] = order[position];
+        }
+        System.arraycopy(sortedKeys, 0, keys, from, size);
+        System.arraycopy(sortedOrder, 0, order, from, size);
+
+        int next = offset + (64 - runBits) / 8;
+        for (int start = 0; start < size;) {
+            int end = start + 1;
+            while (end < size && words[end] >>> runBits == words[start] >>> runBits) {
+                end++;
+            }
+            if (end - start > 1) {
+                sortRun(keys, order, from + start, from + end, next);
+            }
+            start = end;
+        }
+        return true;
+    }
+
+    private static boolean hasBytesFrom(byte[][] keys, int from, int to, int offset) {
+        for (int k = from; k < to; k++) {
+            if (keys[k].length > offset) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void await(List<Future<?>> futures) throws InterruptedException {
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+}
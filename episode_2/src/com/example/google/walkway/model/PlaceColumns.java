@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway.model;
+
+import java.util.List;
+
+/**
+ * Columnar (structure of arrays) copy of the coordinates of a list of places,
+ * for batch geometry over many places without touching the Place objects.
+ */
+public class PlaceColumns {
+    public final int size;
+
+    /** Latitudes, in degrees. */
+    public final double[] lats;
+
+    /** Longitudes, in degrees. */
+    public final double[] lngs;
+
+    /** Cosines of the latitudes, used by the distance predicates. */
+    public final double[] cosLats;
+
+    /** Place type ordinals. */
+    public final byte[] types;
+
+    public PlaceColumns(List<Place> places) {
+        size = places.size();
+        lats = new double[size];
+        lngs = new double[size];
+        cosLats = new double[size];
+        types = new byte[size];
+
+        for (int i = 0; i < size; i++) {
+            Place place = places.get(i);
+            lats[i] = place.lat;
+            lngs[i] = place.lng;
+            cosLats[i] = Math.cos(Math.toRadians(place.lat));
+            types[i] = (byte) place.type.ordinal();
+        }
+    }
+
+    /** Return the approximate size of the columns, in bytes. */
+    public long getByteCount() {
+        return 8L * lats.length + 8L * lngs.length + 8L * cosLats.length + types.length;
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Finds and merges near-duplicate places when importing feeds, e.g. "Ferry
+ * Building" and "Ferry Building Marketplace" a few meters apart.
+ * <p>
+ * Places are blocked by spatial hashing: each place is hashed by its grid
+ * cell, whose size is the merge radius, and only compared with the places in
+ * its own and the neighbouring cells. Candidates within the radius are then
+ * scored on name similarity. The buckets are split into chunks that are
+ * compared in parallel on an executor. Working memory is a few dozen bytes
+ * per place, plus the matched pairs.
+ */
+public class PlaceDeduplicator {
+    /** Meters per degree of latitude. */
+    private static final double METERS_PER_DEGREE = 111195;
+
+    /** Number of chunks of buckets per executor task submitted. */
+    private static final int CHUNKS = 64;
+
+    private final double mRadiusMeters;
+    private final double mMinSimilarity;
+
+    /**
+     * @param radiusMeters Places further apart than this are never merged.
+     * @param minSimilarity The minimum name similarity, from 0 to 1, for two
+     *        places to be merged. See {@link #similarity(int[], int[])}.
+     */
+    public PlaceDeduplicator(double radiusMeters, double minSimilarity) {
+        mRadiusMeters = radiusMeters;
+        mMinSimilarity = minSimilarity;
+    }
+
+    /** The outcome of a deduplication. */
+    public static class Report {
+        /** The places kept, in input order. */
+        public List<Place> places;
+
+        /** The groups of places that were merged. */
+        public List<Merge> merges;
+
+        public int inputCount;
+
+        /** Number of candidate pairs whose names were compared. */
+        public long comparisons;
+
+        public long elapsedMillis;
+
+        @Override
+        public String toString() {
+            return String.format("%d places in, %d out, %d merges, %d comparisons, %dms",
+                    inputCount, places.size(), merges.size(), comparisons, elapsedMillis);
+        }
+    }
+
+    /** A group of duplicates, and the place kept for the group. */
+    public static class Merge {
+        /** The first place of the group in input order. */
+        public Place kept;
+
+        /** The other places of the group, in input order. */
+        public List<Place> duplicates;
+
+        public Merge(Place kept) {
+            this.kept = kept;
+            duplicates = new ArrayList<Place>();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(kept.name);
+            for (Place duplicate : duplicates) {
+                sb.append(" <- ").append(duplicate.name);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Deduplicate the places. Of each group of duplicates, the first place in
+     * input order is kept, so existing places should come before imported
+     * ones.
+     *
+     * @param executor Runs the comparisons in parallel.
+     */
+    public Report deduplicate(List<Place> places, ExecutorService executor)
+            throws InterruptedException {
+        long start = System.currentTimeMillis();
+        final Blocks blocks = new Blocks(places);
+
+        // Compare the buckets in parallel; each task returns its matched pairs.
+        List<Future<Pairs>> futures = new ArrayList<Future<Pairs>>(CHUNKS);
+        int bucketCount = blocks.mBucketOffsets.length - 1;
+        int chunkSize = (bucketCount + CHUNKS - 1) / CHUNKS;
+        for (int from = 0; from < bucketCount; from += chunkSize) {
+            final int firstBucket = from;
+            final int lastBucket = Math.min(bucketCount, from + chunkSize);
+            futures.add(executor.submit(new Callable<Pairs>() {
+                @Override
+                public Pairs call() {
+                    return blocks.compare(firstBucket, lastBucket);
+                }
+            }));
+        }
+
+        // Union the matched pairs; the root of each group is its lowest index.
+        int n = places.size();
+        int[] parents = new int[n];
+        for (int i = 0; i < n; i++) {
+            parents[i] = i;
+        }
+        long comparisons = 0;
+        for (Future<Pairs> future : futures) {
+            Pairs pairs;
+            try {
+                pairs = future.get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+            comparisons += pairs.mComparisons;
+            for (int p = 0; p < pairs.mSize; p += 2) {
+                int a = find(parents, pairs.mIndices[p]);
+                int b = find(parents, pairs.mIndices[p + 1]);
+                if (a < b) {
+                    parents[b] = a;
+                } else if (b < a) {
+                    parents[a] = b;
+                }
+            }
+        }
+
+        Report report = new Report();
+        report.inputCount = n;
+        report.comparisons = comparisons;
+        report.places = new ArrayList<Place>();
+        report.merges = new ArrayList<Merge>();
+
+        // Roots come before the rest of their group, so one pass suffices.
+        Merge[] merges = new Merge[n];
+        for (int i = 0; i < n; i++) {
+            int root = find(parents, i);
+            if (root == i) {
+                report.places.add(places.get(i));
+                continue;
+            }
+            if (merges[root] == null) {
+                merges[root] = new Merge(places.get(root));
+                report.merges.add(merges[root]);
+            }
+            merges[root].duplicates.add(places.get(i));
+        }
+
+        report.elapsedMillis = System.currentTimeMillis() - start;
+        return report;
+    }
+
+    /**
+     * Return the similarity of two names as the overlap coefficient of their
+     * word sets: the number of shared words over the number of words in the
+     * shorter name. A name contained in another scores 1.
+     *
+     * @param a The sorted, distinct word hashes of a name.
+     * @param b The sorted, distinct word hashes of the other name.
+     */
+    static double similarity(int[] a, int[] b) {
+        if (a.length == 0 || b.length == 0) {
+            return 0;
+        }
+
+        int shared = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length;) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                shared++;
+                i++;
+                j++;
+            }
+        }
+        return (double) shared / Math.min(a.length, b.length);
+    }
+
+    /** Return the sorted, distinct hashes of the words of a name. */
+    static int[] words(String name) {
+        String key = PlaceSearchIndex.normalize(name);
+        if (key.length() == 0) {
+            return new int[0];
+        }
+
+        String[] words = key.split(" ");
+        int[] hashes = new int[words.length];
+        for (int i = 0; i < words.length; i++) {
+            hashes[i] = words[i].hashCode();
+        }
+        Arrays.sort(hashes);
+
+        int count = 1;
+        for (int i = 1; i < hashes.length; i++) {
+            if (hashes[i] != hashes[count - 1]) {
+                hashes[count++] = hashes[i];
+            }
+        }
+        if (count == hashes.length) {
+            return hashes;
+        }
+        int[] distinct = new int[count];
+        System.arraycopy(hashes, 0, distinct, 0, count);
+        return distinct;
+    }
+
+    private static int find(int[] parents, int i) {
+        while (parents[i] != i) {
+            // Path halving.
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    /**
+     * The places hashed into buckets by grid cell, in compressed sparse row
+     * layout: bucket b holds the slots [mBucketOffsets[b], mBucketOffsets[b +
+     * 1]). The per-place arrays are indexed by slot, so that scanning a bucket
+     * reads memory sequentially. Read-only once built, so buckets can be
+     * compared concurrently.
+     */
+    private class Blocks {
+        private final int[] mBucketOffsets;
+
+        /** The input index of the place in each slot. */
+        private final int[] mIndices;
+        private final double[] mLats;
+        private final double[] mLngs;
+        private final int[] mRows;
+        private final int[] mColumns;
+        private final byte[] mTypes;
+        private final int[][] mWords;
+
+        private final double mCellLat;
+        private final double mCellLng;
+        private final double mMaxDistance2;
+        private final int mMask;
+
+        Blocks(List<Place> places) {
+            int n = places.size();
+
+            // Make cells at least the radius wide at the highest latitude.
+            double maxAbsLat = 0;
+            for (int i = 0; i < n; i++) {
+                maxAbsLat = Math.max(maxAbsLat, Math.abs(places.get(i).lat));
+            }
+            mCellLat = mRadiusMeters / METERS_PER_DEGREE;
+            mCellLng = mCellLat / Math.cos(Math.toRadians(Math.min(maxAbsLat, 85)));
+            mMaxDistance2 = mCellLat * mCellLat;
+
+            int tableSize = Integer.highestOneBit(Math.max(1, n)) * 2;
+            mMask = tableSize - 1;
+
+            int[] buckets = new int[n];
+            mBucketOffsets = new int[tableSize + 1];
+            for (int i = 0; i < n; i++) {
+                Place place = places.get(i);
+                buckets[i] = bucket(row(place.lat), column(place.lng));
+                mBucketOffsets[buckets[i] + 1]++;
+            }
+            for (int b = 0; b < tableSize; b++) {
+                mBucketOffsets[b + 1] += mBucketOffsets[b];
+            }
+
+            // Counting sort by bucket; places stay in input order within one.
+            mIndices = new int[n];
+            mLats = new double[n];
+            mLngs = new double[n];
+            mRows = new int[n];
+            mColumns = new int[n];
+            mTypes = new byte[n];
+            mWords = new int[n][];
+            int[] fill = new int[tableSize];
+            System.arraycopy(mBucketOffsets, 0, fill, 0, tableSize);
+            for (int i = 0; i < n; i++) {
+                Place place = places.get(i);
+                int slot = fill[buckets[i]]++;
+                mIndices[slot] = i;
+                mLats[slot] = place.lat;
+                mLngs[slot] = place.lng;
+                mRows[slot] = row(place.lat);
+                mColumns[slot] = column(place.lng);
+                mTypes[slot] = (byte) place.type.ordinal();
+                mWords[slot] = words(place.name);
+            }
+        }
+
+        private int row(double lat) {
+            return (int) Math.floor(lat / mCellLat);
+        }
+
+        private int column(double lng) {
+            return (int) Math.floor(lng / mCellLng);
+        }
+
+        private int bucket(int row, int column) {
+            int h = row * 0x9e3779b1 + column * 0x85ebca6b;
+            return (h ^ (h >>> 15)) & mMask;
+        }
+
+        /**
+         * Compare each place in the buckets with the places after it in input
+         * order in its own and the neighbouring cells, so that each pair is
+         * compared once across all tasks.
+         */
+        Pairs compare(int firstBucket, int lastBucket) {
+            Pairs pairs = new Pairs();
+            for (int p = mBucketOffsets[firstBucket]; p < mBucketOffsets[lastBucket]; p++) {
+                int i = mIndices[p];
+                double lat = mLats[p];
+                double lng = mLngs[p];
+                double cosLat = Math.cos(Math.toRadians(lat));
+
+                for (int row = mRows[p] - 1; row <= mRows[p] + 1; row++) {
+                    for (int column = mColumns[p] - 1; column <= mColumns[p] + 1; column++) {
+                        int b = bucket(row, column);
+                        for (int q = mBucketOffsets[b]; q < mBucketOffsets[b + 1]; q++) {
+                            if (mIndices[q] <= i || mRows[q] != row || mColumns[q] != column) {
+                                continue;
+                            }
+
+                            double dLat = mLats[q] - lat;
+                            double dLng = (mLngs[q] - lng) * cosLat;
+                            if (dLat * dLat + dLng * dLng > mMaxDistance2) {
+                                continue;
+                            }
+
+                            pairs.mComparisons++;
+                            if (isDuplicate(p, q)) {
+                                pairs.add(i, mIndices[q]);
+                            }
+                        }
+                    }
+                }
+            }
+            return pairs;
+        }
+
+        /**
+         * Places of different types are only merged if their names have the
+         * same words, so that e.g. a cafe inside a monument is kept.
+         */
+        private boolean isDuplicate(int p, int q) {
+            double similarity = similarity(mWords[p], mWords[q]);
+            if (mTypes[p] == mTypes[q]) {
+                return similarity >= mMinSimilarity;
+            }
+            return similarity == 1 && mWords[p].length == mWords[q].length;
+        }
+    }
+
+    /** A growable list of matched index pairs. */
+    private static class Pairs {
+        private int[] mIndices = new int[16];
+        private int mSize;
+        private long mComparisons;
+
+        void add(int i, int j) {
+            if (mSize + 2 > mIndices.length) {
+                int[] grown = new int[mIndices.length * 2];
+                System.arraycopy(mIndices, 0, grown, 0, mSize);
+                mIndices = grown;
+            }
+            mIndices[mSize++] = i;
+            mIndices[mSize++] = j;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway.model;
+
+/**
+ * A value object for the details of a place that are too large to keep for
+ * every place, and are fetched when the place is shown.
+ */
+public class PlaceDetails {
+    /** The id of the place. */
+    public String placeId;
+
+    /** A description of the place, or null if there is none. */
+    public String description;
+
+    /** The average rating, from 0 to 5, or NaN if the place isn't rated. */
+    public float rating;
+
+    /** The number of reviews the rating is based on. */
+    public int reviewCount;
+
+    public PlaceDetails(String placeId, String description, float rating, int reviewCount) {
+        this.placeId = placeId;
+        this.description = description;
+        this.rating = rating;
+        this.reviewCount = reviewCount;
+    }
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Name search over a fixed list of places. Answers prefix queries from a sorted
+ * array of normalized names and typo-tolerant queries from a trigram inverted
+ * index, with both stored in primitive arrays so that the index stays compact
+ * for large catalogs.
+ */
+public class PlaceSearchIndex {
+    /** Number of distinct symbols after normalization (space, a-z, 0-9, other). */
+    private static final int ALPHABET_SIZE = 38;
+
+    /** Number of possible trigrams; each trigram is packed into 6 bits per symbol. */
+    private static final int GRAM_COUNT = 1 << 18;
+
+    /** Minimum query length for typo-tolerant matching. */
+    private static final int FUZZY_MIN_LENGTH = 3;
+
+    private final Place[] mPlaces;
+
+    /** Normalized place names, indexed like mPlaces. */
+    private final String[] mKeys;
+
+    /** Place type ordinals, indexed like mPlaces. */
+    private final byte[] mTypes;
+
+    /** Place indices sorted by normalized name. */
+    private final int[] mSorted;
+
+    /** Offsets into mPostings for each trigram (CSR layout). */
+    private final int[] mGramOffsets;
+
+    /** Place indices for each trigram, in ascending order. */
+    private final int[] mPostings;
+
+    // Scratch space for fuzzy queries. Guarded by this.
+    private final int[] mHitCounts;
+    private int[] mTouched = new int[1024];
+
+    public PlaceSearchIndex(List<Place> places) {
+        int n = places.size();
+        mPlaces = places.toArray(new Place[n]);
+        mKeys = new String[n];
+        mTypes = new byte[n];
+
+        for (int i = 0; i < n; i++) {
+            mKeys[i] = normalize(mPlaces[i].name);
+            mTypes[i] = (byte) mPlaces[i].type.ordinal();
+        }
+
+        // Sort the place indices by key for prefix lookups.
+        Integer[] boxed = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            boxed[i] = i;
+        }
+        Arrays.sort(boxed, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return mKeys[lhs].compareTo(mKeys[rhs]);
+            }
+        });
+        mSorted = new int[n];
+        for (int i = 0; i < n; i++) {
+            mSorted[i] = boxed[i];
+        }
+
+        // Build the trigram postings in two passes: count, then fill.
+        mGramOffsets = new int[GRAM_COUNT + 1];
+        int[] grams = new int[64];
+        for (int i = 0; i < n; i++) {
+            grams = nameGrams(mKeys[i], grams);
+            for (int j = 1; j <= grams[0]; j++) {
+                mGramOffsets[grams[j] + 1]++;
+            }
+        }
+        for (int g = 0; g < GRAM_COUNT; g++) {
+            mGramOffsets[g + 1] += mGramOffsets[g];
+        }
+
+        mPostings = new int[mGramOffsets[GRAM_COUNT]];
+        int[] fill = new int[GRAM_COUNT];
+        System.arraycopy(mGramOffsets, 0, fill, 0, GRAM_COUNT);
+        for (int i = 0; i < n; i++) {
+            grams = nameGrams(mKeys[i], grams);
+            for (int j = 1; j <= grams[0]; j++) {
+                mPostings[fill[grams[j]]++] = i;
+            }
+        }
+
+        mHitCounts = new int[n];
+    }
+
+    /**
+     * Find the places whose names best match the query. Prefix matches come
+     * first, in name order, followed by typo-tolerant matches ranked by edit
+     * distance.
+     *
+     * @param query The (partial) name typed by the user.
+     * @param limit The maximum number of places to return.
+     * @param types The place types to include, or none for all types.
+     */
+    public synchronized List<Place> search(String query, int limit, Place.PlaceType... types) {
+        List<Place> results = new ArrayList<Place>(limit);
+        String q = normalize(query);
+        if (q.length() == 0 || limit <= 0) {
+            return results;
+        }
+
+        boolean[] typeFilter = null;
+        if (types != null && types.length > 0) {
+            typeFilter = new boolean[Place.PlaceType.values().length];
+            for (Place.PlaceType type : types) {
+                typeFilter[type.ordinal()] = true;
+            }
+        }
+
+        // Prefix matches are a contiguous range of the sorted keys.
+        int lo = lowerBound(q);
+        for (int i = lo; i < mSorted.length && results.size() < limit; i++) {
+            int index = mSorted[i];
+            if (!mKeys[index].startsWith(q)) {
+                break;
+            }
+            if (typeFilter == null || typeFilter[mTypes[index]]) {
+                results.add(mPlaces[index]);
+            }
+        }
+
+        if (results.size() < limit && q.length() >= FUZZY_MIN_LENGTH) {
+            addFuzzyMatches(q, limit, typeFilter, results);
+        }
+
+        return results;
+    }
+
+    public int size() {
+        return mPlaces.length;
+    }
+
+    private void addFuzzyMatches(String q, int limit, boolean[] typeFilter, List<Place> results) {
+        int maxEdits = q.length() <= 4 ? 1 : 2;
+
+        // Count the query trigrams shared with each place. The query isn't
+        // padded at the end since the user is probably still typing.
+        int[] queryGrams = queryGrams(q);
+        int touched = 0;
+        for (int j = 1; j <= queryGrams[0]; j++) {
+            int g = queryGrams[j];
+            for (int p = mGramOffsets[g]; p < mGramOffsets[g + 1]; p++) {
+                int index = mPostings[p];
+                if (mHitCounts[index]++ == 0) {
+                    if (touched == mTouched.length) {
+                        int[] grown = new int[touched * 2];
+                        System.arraycopy(mTouched, 0, grown, 0, touched);
+                        mTouched = grown;
+                    }
+                    mTouched[touched++] = index;
+                }
+            }
+        }
+
+        // Each edit destroys at most three trigrams.
+        int gramCount = queryGrams[0];
+        int minHits = Math.max(1, gramCount - 3 * maxEdits);
+
+        // Bucket the candidates by hit count (counting sort) so that the most
+        // promising ones are verified first.
+        int[] bucketStarts = new int[gramCount + 2];
+        int candidates = 0;
+        for (int t = 0; t < touched; t++) {
+            int index = mTouched[t];
+            int hits = mHitCounts[index];
+            if (hits < minHits || (typeFilter != null && !typeFilter[mTypes[index]])
+                    || mKeys[index].startsWith(q)) {
+                mHitCounts[index] = 0;
+                mTouched[t] = -1;
+            } else {
+                bucketStarts[hits + 1]++;
+                candidates++;
+            }
+        }
+        for (int h = 0; h <= gramCount; h++) {
+            bucketStarts[h + 1] += bucketStarts[h];
+        }
+        int[] byHits = new int[candidates];
+        for (int t = 0; t < touched; t++) {
+            int index = mTouched[t];
+            if (index >= 0) {
+                byHits[bucketStarts[mHitCounts[index]]++] = index;
+                mHitCounts[index] = 0;
+            }
+        }
+
+        // Keep the best candidates ordered by (distance, -hits, name length).
+        int[] best = new int[limit];
+        long[] bestScores = new long[limit];
+        int bestCount = 0;
+
+        // After the counting sort, bucketStarts[h] is the end of bucket h.
+        for (int hits = gramCount; hits >= minHits; hits--) {
+            // Missing trigrams bound the distance from below, so once the
+            // results are full of closer matches the rest can be skipped.
+            int minDistance = (gramCount - hits + 2) / 3;
+            if (bestCount == limit && (bestScores[limit - 1] >>> 40) <= minDistance) {
+                break;
+            }
+
+            for (int i = bucketStarts[hits] - 1; i >= bucketStarts[hits - 1]; i--) {
+                int index = byHits[i];
+                int distance = substringDistance(q, mKeys[index]);
+                if (distance > maxEdits) {
+                    continue;
+                }
+
+                long score = ((long) distance << 40) | ((long) (0xfffff - hits) << 20)
+                        | Math.min(mKeys[index].length(), 0xfffff);
+
+                if (bestCount == limit && score >= bestScores[bestCount - 1]) {
+                    continue;
+                }
+
+                int pos = bestCount == limit ? limit - 1 : bestCount++;
+                while (pos > 0 && bestScores[pos - 1] > score) {
+                    bestScores[pos] = bestScores[pos - 1];
+                    best[pos] = best[pos - 1];
+                    pos--;
+                }
+                bestScores[pos] = score;
+                best[pos] = index;
+            }
+        }
+
+        for (int i = 0; i < bestCount && results.size() < limit; i++) {
+            results.add(mPlaces[best[i]]);
+        }
+    }
+
+    /** Index of the first sorted key that is not less than the given key. */
+    private int lowerBound(String key) {
+        int lo = 0;
+        int hi = mSorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mKeys[mSorted[mid]].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Minimum edit distance between the query and any substring of the text
+     * (Sellers' algorithm).
+     */
+    private static int substringDistance(String query, String text) {
+        int m = query.length();
+        int[] prev = new int[m + 1];
+        int[] curr = new int[m + 1];
+        for (int i = 0; i <= m; i++) {
+            prev[i] = i;
+        }
+
+        int best = prev[m];
+        for (int j = 1; j <= text.length(); j++) {
+            char c = text.charAt(j - 1);
+            curr[0] = 0;
+            for (int i = 1; i <= m; i++) {
+                int cost = query.charAt(i - 1) == c ? 0 : 1;
+                int v = Math.min(Math.min(prev[i] + 1, curr[i - 1] + 1), prev[i - 1] + cost);
+                curr[i] = v;
+            }
+            best = Math.min(best, curr[m]);
+            if (best == 0) {
+                break;
+            }
+
+            int[] tmp = prev;
+            prev = curr;
+            curr = tmp;
+        }
+
+        return best;
+    }
+
+    /**
+     * Normalize a name for indexing: lower case, with runs of anything other
+     * than letters and digits collapsed to a single space.
+     */
+    static String normalize(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        boolean space = true;
+        for (int i = 0; i < s.length(); i++) {
+            char c = Character.toLowerCase(s.charAt(i));
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(c);
+                space = false;
+            } else if (!space) {
+                sb.append(' ');
+                space = true;
+            }
+        }
+        int len = sb.length();
+        if (len > 0 && sb.charAt(len - 1) == ' ') {
+            sb.setLength(len - 1);
+        }
+        return sb.toString();
+    }
+
+    private static int symbol(char c) {
+        if (c >= 'a' && c <= 'z') {
+            return 1 + c - 'a';
+        } else if (c >= '0' && c <= '9') {
+            return 27 + c - '0';
+        } else if (c == ' ') {
+            return 0;
+        }
+        return ALPHABET_SIZE - 1;
+    }
+
+    private static int gram(int a, int b, int c) {
+        return (a << 12) | (b << 6) | c;
+    }
+
+    /**
+     * Return the distinct trigrams of a normalized name, padded with two
+     * leading spaces and one trailing space. The count is stored in element 0.
+     */
+    private static int[] nameGrams(String key, int[] out) {
+        int len = key.length();
+        if (out.length < len + 3) {
+            out = new int[len + 3];
+        }
+
+        int count = 0;
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i <= len; i++) {
+            int c = i < len ? symbol(key.charAt(i)) : 0;
+            out[++count] = gram(a, b, c);
+            a = b;
+            b = c;
+        }
+
+        // De-duplicate so each place appears once per posting list.
+        Arrays.sort(out, 1, count + 1);
+        int unique = 0;
+        for (int i = 1; i <= count; i++) {
+            if (unique == 0 || out[unique] != out[i]) {
+                out[++unique] = out[i];
+            }
+        }
+        out[0] = unique;
+        return out;
+    }
+
+    private static int[] queryGrams(String q) {
+        int[] out = nameGrams(q, new int[q.length() + 3]);
+
+        // Drop the grams that end with the trailing pad space.
+        int len = q.length();
+        int last = gram(len > 1 ? symbol(q.charAt(len - 2)) : 0, symbol(q.charAt(len - 1)), 0);
+        int unique = 0;
+        for (int i = 1; i <= out[0]; i++) {
+            if (out[i] != last) {
+                out[++unique] = out[i];
+            }
+        }
+        out[0] = unique;
+        return out;
+    }
+
+    /** Return the approximate size of the index, in bytes. */
+    public long getByteCount() {
+        long bytes = 4L * (mPlaces.length + mSorted.length + mGramOffsets.length
+                + mPostings.length + mHitCounts.length + mTouched.length);
+        bytes += mTypes.length;
+        for (String key : mKeys) {
+            bytes += 4 + 40 + 2L * key.length(); // reference, String and char[] headers, chars
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway.model;
+
+/**
+ * A value object for the live status of a place, e.g. from a push feed.
+ */
+public class PlaceStatus {
+    /** The id of the place. */
+    public String placeId;
+    
+    /** Whether the place is currently open. */
+    public boolean open;
+    
+    /** How busy the place is, from 0 (empty) to 100 (packed). */
+    public int busyness;
+
+    public PlaceStatus(String placeId, boolean open, int busyness) {
+        this.placeId = placeId;
+        this.open = open;
+        this.busyness = busyness;
+    }
+}
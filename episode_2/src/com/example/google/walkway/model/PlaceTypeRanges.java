@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway.model;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The ranges of a list of places that is grouped by type, in type order, so
+ * that the places of one type can be removed or inserted as a block without
+ * looking at the places of the other types.
+ * <p>
+ * Not thread-safe.
+ */
+public class PlaceTypeRanges {
+    /** The number of places of each type, by ordinal. */
+    private final int[] mCounts = new int[Place.PlaceType.values().length];
+
+    /**
+     * Count the places of a list that is grouped by type.
+     *
+     * @throws IllegalArgumentException If the list isn't grouped by type, in
+     *         type order.
+     */
+    public PlaceTypeRanges(List<Place> places) {
+        int lastOrdinal = 0;
+        for (Place place : places) {
+            int ordinal = place.type.ordinal();
+            if (ordinal < lastOrdinal) {
+                throw new IllegalArgumentException("Places are not grouped by type");
+            }
+            mCounts[ordinal]++;
+            lastOrdinal = ordinal;
+        }
+    }
+
+    /** Return the index of the first place of the type. */
+    public int getStart(Place.PlaceType type) {
+        int start = 0;
+        for (int ordinal = 0; ordinal < type.ordinal(); ordinal++) {
+            start += mCounts[ordinal];
+        }
+        return start;
+    }
+
+    public int getCount(Place.PlaceType type) {
+        return mCounts[type.ordinal()];
+    }
+
+    /** Record that the places of the type were replaced with count places. */
+    public void setCount(Place.PlaceType type, int count) {
+        mCounts[type.ordinal()] = count;
+    }
+
+    /**
+     * Return the index that a place of a type that was neither removed nor
+     * added has in these ranges, or -1 if its type was removed.
+     *
+     * @param before The ranges before the change, that the index is in.
+     */
+    public int mapIndex(PlaceTypeRanges before, int index, Place.PlaceType type) {
+        if (getCount(type) == 0) {
+            return -1;
+        }
+        return getStart(type) + index - before.getStart(type);
+    }
+
+    /** Return a copy of the ranges, e.g. to map indexes across a change. */
+    public PlaceTypeRanges copy() {
+        PlaceTypeRanges copy = new PlaceTypeRanges(Collections.<Place>emptyList());
+        System.arraycopy(mCounts, 0, copy.mCounts, 0, mCounts.length);
+        return copy;
+    }
+}
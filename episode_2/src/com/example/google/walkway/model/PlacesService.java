@@ -1,41 +1,389 @@
 package com.example.google.walkway.model;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Calendar;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 public class PlacesService {
     /**
-     * Temporary list of places that we'd list to show on the map.
+     * The places that we'd like to show on the map. Safe to update from a
+     * background thread while the UI queries it.
      */
-    private static final ArrayList<Place> PLACES = new ArrayList<Place>();
+    private static final PlaceCatalog PLACES = new PlaceCatalog();
+
+    /** Places further apart than this are never merged on import, in meters. */
+    private static final double DEDUP_RADIUS_METERS = 75;
+
+    /** The minimum name similarity for places to be merged on import. */
+    private static final double DEDUP_MIN_SIMILARITY = 0.8;
+
+    /**
+     * Rebuilds the indexes derived from PLACES when it changes, so that the
+     * threads querying them (e.g. the UI thread) don't.
+     */
+    private static final ExecutorService INDEX_EXECUTOR = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "PlacesService-index");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+    /** The places of each type, by ordinal, of a snapshot of PLACES. */
+    private static final SnapshotIndex<List<List<Place>>> PLACES_BY_TYPE =
+            new SnapshotIndex<List<List<Place>>>(PLACES, INDEX_EXECUTOR) {
+                @Override
+                protected List<List<Place>> build(PlaceCatalog.Snapshot snapshot) {
+                    List<List<Place>> placesByType = new ArrayList<List<Place>>();
+                    for (int ordinal = 0; ordinal < Place.PlaceType.values().length; ordinal++) {
+                        placesByType.add(new ArrayList<Place>());
+                    }
+                    for (int i = 0; i < snapshot.size(); i++) {
+                        Place place = snapshot.get(i);
+                        placesByType.get(place.type.ordinal()).add(place);
+                    }
+                    return placesByType;
+                }
+            };
+
+    /** Name search index over a snapshot of PLACES. */
+    private static final SnapshotIndex<PlaceSearchIndex> SEARCH_INDEX =
+            new SnapshotIndex<PlaceSearchIndex>(PLACES, INDEX_EXECUTOR) {
+                @Override
+                protected PlaceSearchIndex build(PlaceCatalog.Snapshot snapshot) {
+                    return new PlaceSearchIndex(snapshot.getPlaces());
+                }
+            };
+
+    /** Columnar coordinates of a snapshot of PLACES. Rebuilt when PLACES changes. */
+    private static PlaceColumns sColumns;
+    private static long sColumnsVersion = -1;
+
+    /** Rows and columns of the facet count grid. */
+    private static final int FACET_GRID_SIZE = 128;
+
+    /** Per-type counts over a snapshot of PLACES. */
+    private static final SnapshotIndex<FacetCounter> FACET_COUNTER =
+            new SnapshotIndex<FacetCounter>(PLACES, INDEX_EXECUTOR) {
+                @Override
+                protected FacetCounter build(PlaceCatalog.Snapshot snapshot) {
+                    return new FacetCounter(getColumns(snapshot), FACET_GRID_SIZE);
+                }
+            };
+
+    /** Opening hours over a snapshot of PLACES. */
+    private static final SnapshotIndex<OpeningHoursIndex> OPENING_HOURS_INDEX =
+            new SnapshotIndex<OpeningHoursIndex>(PLACES, INDEX_EXECUTOR) {
+                @Override
+                protected OpeningHoursIndex build(PlaceCatalog.Snapshot snapshot) {
+                    return new OpeningHoursIndex(snapshot.getPlaces());
+                }
+            };
+
+    /** Name order of a snapshot of PLACES. Rebuilt when PLACES or the locale changes. */
+    private static PlaceCollation sCollation;
+
+    /** Walking isochrones over a snapshot of PLACES. Rebuilt when PLACES changes. */
+    private static StreetGraph sStreetGraph;
+    private static IsochroneEngine sIsochroneEngine;
+    private static long sIsochroneEngineVersion = -1;
 
     /* Initialize the static collection. */
     static {
-        PLACES.add(new Place("Ferry Building", 37.7955, -122.3937, Place.PlaceType.SHOP));
-        PLACES.add(new Place("Exploratorium", 37.801434, -122.397561, Place.PlaceType.MUSEUM));
-        PLACES.add(new Place("Greenwich Street Stairs", 37.8030764, -122.4035185, Place.PlaceType.PARK));
-        PLACES.add(new Place("Coit Tower", 37.8025, -122.405833, Place.PlaceType.MONUMENT));
-        PLACES.add(new Place("Dragon (Chinatown) Gate", 37.790582, -122.405624, Place.PlaceType.MONUMENT));
-        PLACES.add(new Place("Union Square", 37.788056, -122.4075, Place.PlaceType.PARK));
-        PLACES.add(new Place("Yerba Buena Gardens", 37.785607, -122.402691, Place.PlaceType.PARK));
+        int[] weekdays = { Calendar.MONDAY, Calendar.TUESDAY, Calendar.WEDNESDAY,
+                Calendar.THURSDAY, Calendar.FRIDAY };
+        int[] everyDay = { Calendar.SUNDAY, Calendar.MONDAY, Calendar.TUESDAY,
+                Calendar.WEDNESDAY, Calendar.THURSDAY, Calendar.FRIDAY, Calendar.SATURDAY };
+        
+        PlaceCatalog.Batch batch = new PlaceCatalog.Batch();
+        Place place = new Place("Ferry Building", 37.7955, -122.3937, Place.PlaceType.SHOP);
+        place.hours = new OpeningHours()
+                .add(weekdays, 10 * 60, 19 * 60)
+                .add(Calendar.SATURDAY, 8 * 60, 18 * 60)
+                .add(Calendar.SUNDAY, 11 * 60, 17 * 60);
+        batch.upsert(place);
+        place = new Place("Exploratorium", 37.801434, -122.397561, Place.PlaceType.MUSEUM);
+        place.hours = new OpeningHours()
+                .add(everyDay, 10 * 60, 17 * 60)
+                .add(Calendar.THURSDAY, 18 * 60, 22 * 60);
+        batch.upsert(place);
+        batch.upsert(new Place("Greenwich Street Stairs", 37.8030764, -122.4035185, Place.PlaceType.PARK));
+        place = new Place("Coit Tower", 37.8025, -122.405833, Place.PlaceType.MONUMENT);
+        place.hours = new OpeningHours().add(everyDay, 10 * 60, 18 * 60);
+        batch.upsert(place);
+        batch.upsert(new Place("Dragon (Chinatown) Gate", 37.790582, -122.405624, Place.PlaceType.MONUMENT));
+        batch.upsert(new Place("Union Square", 37.788056, -122.4075, Place.PlaceType.PARK));
+        batch.upsert(new Place("Yerba Buena Gardens", 37.785607, -122.402691, Place.PlaceType.PARK));
+        PLACES.apply(batch);
+    }
+    
+    /** Return the catalog, e.g. to apply updates from a feed. */
+    public static PlaceCatalog getCatalog() {
+        return PLACES;
+    }
+    
+    /**
+     * Import places from a feed, merging those that duplicate each other or
+     * the places already in the catalog. Existing places are kept in favour
+     * of imported duplicates. This can be slow; call it from a background
+     * thread.
+     *
+     * @param executor Runs the duplicate detection in parallel.
+     * @return The merge report.
+     */
+    public static PlaceDeduplicator.Report importPlaces(List<Place> places,
+            ExecutorService executor) throws InterruptedException {
+        // Imported places replace existing places with the same id.
+        HashSet<String> importedIds = new HashSet<String>();
+        for (Place place : places) {
+            importedIds.add(place.id);
+        }
+        PlaceCatalog.Snapshot snapshot = PLACES.getSnapshot();
+        List<Place> candidates = new ArrayList<Place>(snapshot.size() + places.size());
+        for (int i = 0; i < snapshot.size(); i++) {
+            if (!importedIds.contains(snapshot.get(i).id)) {
+                candidates.add(snapshot.get(i));
+            }
+        }
+        candidates.addAll(places);
+
+        PlaceDeduplicator.Report report = new PlaceDeduplicator(DEDUP_RADIUS_METERS,
+                DEDUP_MIN_SIMILARITY).deduplicate(candidates, executor);
+
+        // Later operations win, so the survivors are upserted last.
+        PlaceCatalog.Batch batch = new PlaceCatalog.Batch();
+        for (PlaceDeduplicator.Merge merge : report.merges) {
+            for (Place duplicate : merge.duplicates) {
+                batch.delete(duplicate.id);
+            }
+        }
+        batch.upsertAll(report.places);
+        PLACES.apply(batch);
+        refreshIndexes();
+
+        return report;
+    }
+    
+    /**
+     * Start rebuilding the indexes that are out of date with the catalog, e.g.
+     * after applying updates to it, rather than on their next use. Never
+     * blocks.
+     */
+    public static void refreshIndexes() {
+        PLACES_BY_TYPE.refresh();
+        SEARCH_INDEX.refresh();
+        OPENING_HOURS_INDEX.refresh();
+        FACET_COUNTER.refresh();
     }
     
+    /**
+     * Return the places of the types, grouped by type in type order (see
+     * {@link PlaceTypeRanges}), and in catalog order within each type. Only
+     * the places of the types are looked at. Right after the catalog changes,
+     * these may be the places of the previous version.
+     */
     public static List<Place> getPlacesByType(Place.PlaceType... types) {
-        List<Place> places = new LinkedList<Place>();
-        
         TreeSet<Place.PlaceType> typeTree = new TreeSet<Place.PlaceType>();
         for (Place.PlaceType type : types) {
             typeTree.add(type);
         }
         
-        for (Place place : PLACES) {
-            if (typeTree.contains(place.type)) {
-                places.add(place);
-            }
+        List<List<Place>> placesByType = PLACES_BY_TYPE.get();
+        int size = 0;
+        for (Place.PlaceType type : typeTree) {
+            size += placesByType.get(type.ordinal()).size();
         }
         
+        // An ArrayList since callers look places up by index.
+        List<Place> places = new ArrayList<Place>(size);
+        for (Place.PlaceType type : typeTree) {
+            places.addAll(placesByType.get(type.ordinal()));
+        }
         return places;
     }
+
+    /**
+     * Find the places whose names match a (partial, possibly misspelled) query.
+     *
+     * @param query The name typed by the user.
+     * @param limit The maximum number of places to return.
+     * @param types The place types to include, or none for all types.
+     */
+    public static List<Place> searchPlaces(String query, int limit, Place.PlaceType... types) {
+        return getSearchIndex().search(query, limit, types);
+    }
+
+    /**
+     * Return the name search index. After the catalog changes, the index of
+     * the previous version is returned until the new one has been built in
+     * the background.
+     */
+    public static PlaceSearchIndex getSearchIndex() {
+        return SEARCH_INDEX.get();
+    }
+
+    /**
+     * Return the places within a radius of a point, in catalog order.
+     */
+    public static List<Place> getPlacesNear(double lat, double lng, double radiusMeters) {
+        PlaceCatalog.Snapshot snapshot = PLACES.getSnapshot();
+        PlaceColumns columns = getColumns(snapshot);
+        boolean[] matches = new boolean[columns.size];
+        GeoPredicates.withinRadius(columns, lat, lng, radiusMeters, matches);
+        return collect(snapshot, matches);
+    }
+
+    /**
+     * Return the places inside a polygon (e.g. a neighbourhood), in catalog
+     * order.
+     */
+    public static List<Place> getPlacesInPolygon(double[] polyLats, double[] polyLngs) {
+        PlaceCatalog.Snapshot snapshot = PLACES.getSnapshot();
+        PlaceColumns columns = getColumns(snapshot);
+        boolean[] matches = new boolean[columns.size];
+        GeoPredicates.withinPolygon(columns, polyLats, polyLngs, matches);
+        return collect(snapshot, matches);
+    }
+
+    /**
+     * Return the per-type place counter over the current places, e.g. to count
+     * the places of each type in the viewport. Like the search index, it may
+     * be of the previous version while it is rebuilt. Builds the counter on
+     * the calling thread if there is none; call it from a background thread.
+     */
+    public static FacetCounter getFacetCounter() {
+        return FACET_COUNTER.get();
+    }
+
+    /**
+     * Return the latest per-type place counter that has been built, or null if
+     * there is none yet. Never builds on the calling thread, so it's safe to
+     * call on every camera change.
+     */
+    public static FacetCounter peekFacetCounter() {
+        return FACET_COUNTER.peek();
+    }
+
+    /**
+     * Return the places of the types that are open at a time. Places with
+     * unknown opening hours are included.
+     */
+    public static List<Place> getOpenPlacesByType(Calendar time, Place.PlaceType... types) {
+        return getOpeningHoursIndex().getOpenPlaces(OpeningHours.slotOf(time), types);
+    }
+
+    /**
+     * Return the opening hours index. Like the search index, it may be of the
+     * previous version while it is rebuilt.
+     */
+    public static OpeningHoursIndex getOpeningHoursIndex() {
+        return OPENING_HOURS_INDEX.get();
+    }
+
+    /**
+     * Return the name order of the current places for the locale. This can be
+     * slow; call it from a background thread. After a catalog update, the
+     * previous order is updated with the places that changed.
+     *
+     * @param executor Computes the order in parallel.
+     */
+    public static synchronized PlaceCollation getCollation(Locale locale,
+            ExecutorService executor) throws InterruptedException {
+        PlaceCatalog.Snapshot snapshot = PLACES.getSnapshot();
+        if (sCollation == null || !sCollation.getLocale().equals(locale)) {
+            sCollation = new PlaceCollation(snapshot, locale, executor);
+        } else if (sCollation.getVersion() != snapshot.version) {
+            sCollation = sCollation.update(snapshot, executor);
+        }
+        return sCollation;
+    }
+
+    /**
+     * Drop the indexes derived from PLACES, e.g. when memory is low. They are
+     * rebuilt when next needed. The name collation is kept, as the place list
+     * holds on to it anyway.
+     *
+     * @return The approximate number of bytes released.
+     */
+    public static synchronized long trimCaches() {
+        long bytes = 0;
+        if (PLACES_BY_TYPE.clear() != null) {
+            // A reference per place.
+            bytes += 4L * PLACES.getSnapshot().size();
+        }
+        PlaceSearchIndex searchIndex = SEARCH_INDEX.clear();
+        if (searchIndex != null) {
+            bytes += searchIndex.getByteCount();
+        }
+        if (sColumns != null) {
+            bytes += sColumns.getByteCount();
+            sColumns = null;
+            sColumnsVersion = -1;
+        }
+        FacetCounter facetCounter = FACET_COUNTER.clear();
+        if (facetCounter != null) {
+            bytes += facetCounter.getByteCount();
+        }
+        OpeningHoursIndex openingHoursIndex = OPENING_HOURS_INDEX.clear();
+        if (openingHoursIndex != null) {
+            bytes += openingHoursIndex.getByteCount();
+        }
+        if (sIsochroneEngine != null) {
+            bytes += sIsochroneEngine.getByteCount();
+        } else if (sStreetGraph != null) {
+            bytes += sStreetGraph.getByteCount();
+        }
+        sIsochroneEngine = null;
+        sIsochroneEngineVersion = -1;
+        sStreetGraph = null;
+        return bytes;
+    }
+
+    private static synchronized PlaceColumns getColumns(PlaceCatalog.Snapshot snapshot) {
+        if (sColumns == null || sColumnsVersion != snapshot.version) {
+            sColumns = new PlaceColumns(snapshot.getPlaces());
+            sColumnsVersion = snapshot.version;
+        }
+        return sColumns;
+    }
+
+    private static List<Place> collect(PlaceCatalog.Snapshot snapshot, boolean[] matches) {
+        List<Place> places = new ArrayList<Place>();
+        for (int i = 0; i < matches.length; i++) {
+            if (matches[i]) {
+                places.add(snapshot.get(i));
+            }
+        }
+        return places;
+    }
+
+    /**
+     * Return an isochrone engine over the current places, loading the street
+     * graph from the file on first use. This can be slow; call it from a
+     * background thread.
+     */
+    public static synchronized IsochroneEngine getIsochroneEngine(File graphFile)
+            throws IOException {
+        if (sStreetGraph == null) {
+            sStreetGraph = StreetGraph.load(graphFile);
+        }
+
+        PlaceCatalog.Snapshot snapshot = PLACES.getSnapshot();
+        if (sIsochroneEngine == null || sIsochroneEngineVersion != snapshot.version) {
+            sIsochroneEngine = new IsochroneEngine(sStreetGraph, snapshot.getPlaces());
+            sIsochroneEngineVersion = snapshot.version;
+        }
+        return sIsochroneEngine;
+    }
 }
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway.model;
+
+import java.util.List;
+
+/**
+ * Reports when a stream of location fixes enters and exits the surroundings of
+ * places. A place is entered when a fix comes within the enter radius, and
+ * only exited when a fix is beyond the larger exit radius, so that GPS noise
+ * at the boundary doesn't flap.
+ * <p>
+ * Places are hashed by the cell of a grid as wide as the exit radius, so each
+ * fix only checks the places in the buckets of the 3x3 cells around it.
+ * Fixes are buffered and processed in batches; fixes that barely moved since
+ * the last processed one are skipped.
+ * <p>
+ * Not thread-safe.
+ */
+public class ProximityEngine {
+    /** Meters per degree of latitude. */
+    private static final double METERS_PER_DEGREE = 111195;
+
+    public interface Listener {
+        void onPlaceEntered(Place place);
+
+        void onPlaceExited(Place place);
+    }
+
+    private final Place[] mPlaces;
+    private final double mEnterRadius;
+    private final double mExitRadius;
+
+    /** Fixes closer than this (in meters) to the last processed one are skipped. */
+    private final double mMinMovement;
+
+    // Places hashed by grid cell, in compressed sparse row layout: the places
+    // of bucket b are mBucketPlaces[mBucketOffsets[b]..mBucketOffsets[b + 1]).
+    private final double mCellLat;
+    private final double mCellLng;
+    private final int mMask;
+    private final int[] mBucketOffsets;
+    private final int[] mBucketPlaces;
+
+    /** The places the fixes are currently inside of. */
+    private int[] mInside = new int[8];
+    private int mInsideCount;
+
+    private double[] mPendingLats = new double[16];
+    private double[] mPendingLngs = new double[16];
+    private int mPendingCount;
+
+    private double mLastLat = Double.NaN;
+    private double mLastLng = Double.NaN;
+
+    private long mFixCount;
+    private long mProcessedFixCount;
+    private long mDistanceChecks;
+
+    /**
+     * @param enterRadius The distance, in meters, at which a place is entered.
+     * @param exitRadius The distance, in meters, beyond which an entered
+     *        place is exited. Must be at least the enter radius.
+     */
+    public ProximityEngine(List<Place> places, double enterRadius, double exitRadius) {
+        mPlaces = places.toArray(new Place[places.size()]);
+        mEnterRadius = enterRadius;
+        mExitRadius = exitRadius;
+        mMinMovement = Math.max(1, (exitRadius - enterRadius) / 4);
+
+        int n = mPlaces.length;
+        double maxAbsLat = 0;
+        for (Place place : mPlaces) {
+            maxAbsLat = Math.max(maxAbsLat, Math.abs(place.lat));
+        }
+
+        // Make cells at least the exit radius wide at the highest latitude.
+        mCellLat = exitRadius / METERS_PER_DEGREE;
+        mCellLng = mCellLat / Math.cos(Math.toRadians(Math.min(maxAbsLat, 85)));
+
+        int tableSize = Integer.highestOneBit(Math.max(1, n)) * 2;
+        mMask = tableSize - 1;
+        mBucketOffsets = new int[tableSize + 1];
+        int[] buckets = new int[n];
+        for (int i = 0; i < n; i++) {
+            buckets[i] = bucket(row(mPlaces[i].lat), column(mPlaces[i].lng));
+            mBucketOffsets[buckets[i] + 1]++;
+        }
+        for (int b = 0; b < tableSize; b++) {
+            mBucketOffsets[b + 1] += mBucketOffsets[b];
+        }
+        mBucketPlaces = new int[n];
+        int[] fill = new int[tableSize];
+        System.arraycopy(mBucketOffsets, 0, fill, 0, tableSize);
+        for (int i = 0; i < n; i++) {
+            mBucketPlaces[fill[buckets[i]]++] = i;
+        }
+    }
+
+    /**
+     * Carry on from a previous engine, e.g. one over the places displayed
+     * before they changed, so that a new engine can be built in the
+     * background and then swapped in. The fixes not processed yet, the last
+     * processed fix and the counts are taken over, and so are the places the
+     * fixes are inside of that are also in this engine, matched by id in the
+     * bucket of their position, so they aren't entered again. Entered places
+     * that aren't in this engine are dropped without being exited. Takes
+     * time in the number of places entered, not of all places.
+     */
+    public void carryOver(ProximityEngine previous) {
+        for (int k = 0; k < previous.mInsideCount; k++) {
+            Place place = previous.mPlaces[previous.mInside[k]];
+            int b = bucket(row(place.lat), column(place.lng));
+            for (int p = mBucketOffsets[b]; p < mBucketOffsets[b + 1]; p++) {
+                int i = mBucketPlaces[p];
+                if (mPlaces[i].id.equals(place.id) && !isInside(mPlaces[i])) {
+                    addInside(i);
+                    break;
+                }
+            }
+        }
+
+        mPendingLats = previous.mPendingLats.clone();
+        mPendingLngs = previous.mPendingLngs.clone();
+        mPendingCount = previous.mPendingCount;
+        mLastLat = previous.mLastLat;
+        mLastLng = previous.mLastLng;
+        mFixCount = previous.mFixCount;
+        mProcessedFixCount = previous.mProcessedFixCount;
+        mDistanceChecks = previous.mDistanceChecks;
+    }
+
+    /**
+     * Buffer a fix for the next batch.
+     *
+     * @return true if this is the first fix of the batch, i.e. the caller
+     *         should schedule {@link #processFixes(Listener)}.
+     */
+    public boolean addFix(double lat, double lng) {
+        if (mPendingCount == mPendingLats.length) {
+            mPendingLats = grow(mPendingLats);
+            mPendingLngs = grow(mPendingLngs);
+        }
+        mPendingLats[mPendingCount] = lat;
+        mPendingLngs[mPendingCount] = lng;
+        mFixCount++;
+        return mPendingCount++ == 0;
+    }
+
+    /**
+     * Process the buffered fixes in order, reporting the enter and exit
+     * events to the listener.
+     */
+    public void processFixes(Listener listener) {
+        for (int f = 0; f < mPendingCount; f++) {
+            double lat = mPendingLats[f];
+            double lng = mPendingLngs[f];
+            if (!Double.isNaN(mLastLat) && distance(lat, lng, mLastLat, mLastLng) < mMinMovement) {
+                continue;
+            }
+            mLastLat = lat;
+            mLastLng = lng;
+            mProcessedFixCount++;
+            processFix(lat, lng, listener);
+        }
+        mPendingCount = 0;
+    }
+
+    /** Return true if the fixes are currently inside the place. */
+    public boolean isInside(Place place) {
+        for (int k = 0; k < mInsideCount; k++) {
+            if (mPlaces[mInside[k]] == place) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d fixes, %d processed, %d distance checks, inside %d places",
+                mFixCount, mProcessedFixCount, mDistanceChecks, mInsideCount);
+    }
+
+    private void processFix(double lat, double lng, Listener listener) {
+        // Exits first, checked against the entered places wherever they are.
+        for (int k = 0; k < mInsideCount;) {
+            Place place = mPlaces[mInside[k]];
+            mDistanceChecks++;
+            if (distance(lat, lng, place.lat, place.lng) > mExitRadius) {
+                mInside[k] = mInside[--mInsideCount];
+                listener.onPlaceExited(place);
+            } else {
+                k++;
+            }
+        }
+
+        int row = row(lat);
+        int column = column(lng);
+        for (int r = row - 1; r <= row + 1; r++) {
+            for (int c = column - 1; c <= column + 1; c++) {
+                // Buckets may hold other cells' places too; the distance
+                // check filters them out.
+                int b = bucket(r, c);
+                for (int p = mBucketOffsets[b]; p < mBucketOffsets[b + 1]; p++) {
+                    int i = mBucketPlaces[p];
+                    Place place = mPlaces[i];
+                    mDistanceChecks++;
+                    if (distance(lat, lng, place.lat, place.lng) <= mEnterRadius
+                            && !isInside(place)) {
+                        addInside(i);
+                        listener.onPlaceEntered(place);
+                    }
+                }
+            }
+        }
+    }
+
+    private void addInside(int i) {
+        if (mInsideCount == mInside.length) {
+            int[] grown = new int[mInside.length * 2];
+            System.arraycopy(mInside, 0, grown, 0, mInsideCount);
+            mInside = grown;
+        }
+        mInside[mInsideCount++] = i;
+    }
+
+    /** Return the distance in meters, using an equirectangular approximation. */
+    private static double distance(double lat1, double lng1, double lat2, double lng2) {
+        double dLat = lat2 - lat1;
+        double dLng = (lng2 - lng1) * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+        return Math.sqrt(dLat * dLat + dLng * dLng) * METERS_PER_DEGREE;
+    }
+
+    private int row(double lat) {
+        return (int) Math.floor(lat / mCellLat);
+    }
+
+    private int column(double lng) {
+        return (int) Math.floor(lng / mCellLng);
+    }
+
+    private int bucket(int row, int column) {
+        int h = row * 0x9e3779b1 + column * 0x85ebca6b;
+        return (h ^ (h >>> 15)) & mMask;
+    }
+
+    private static double[] grow(double[] array) {
+        double[] grown = new double[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
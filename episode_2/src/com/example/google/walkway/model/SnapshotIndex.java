@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway.model;
+
+import java.util.concurrent.Executor;
+
+/**
+ * An index derived from a snapshot of a {@link PlaceCatalog}, that is rebuilt
+ * on a background executor when the catalog changes. Until the rebuild is
+ * done the index of the previous snapshot is served, so callers (e.g. on the
+ * UI thread) never wait for a rebuild; only the very first build, when there
+ * is nothing to serve, runs on the calling thread.
+ * <p>
+ * Thread-safe.
+ */
+abstract class SnapshotIndex<T> {
+    private final PlaceCatalog mCatalog;
+    private final Executor mExecutor;
+
+    private T mIndex;
+    private long mVersion = -1;
+    private boolean mRebuildScheduled;
+
+    /** Incremented by clear(), so that a rebuild scheduled before doesn't restore the index. */
+    private int mClearCount;
+    private int mRebuildClearCount;
+
+    private final Runnable mRebuild = new Runnable() {
+        @Override
+        public void run() {
+            int clearCount;
+            synchronized (SnapshotIndex.this) {
+                clearCount = mRebuildClearCount;
+            }
+            PlaceCatalog.Snapshot snapshot = mCatalog.getSnapshot();
+            T index = null;
+            try {
+                index = build(snapshot);
+            } finally {
+                synchronized (SnapshotIndex.this) {
+                    mRebuildScheduled = false;
+                    if (index != null && clearCount == mClearCount
+                            && snapshot.version > mVersion) {
+                        mIndex = index;
+                        mVersion = snapshot.version;
+                    }
+                }
+            }
+        }
+    };
+
+    SnapshotIndex(PlaceCatalog catalog, Executor executor) {
+        mCatalog = catalog;
+        mExecutor = executor;
+    }
+
+    /** Build the index over a snapshot. Called on the executor, or on the first get. */
+    protected abstract T build(PlaceCatalog.Snapshot snapshot);
+
+    /**
+     * Return the index of the latest snapshot that has been built, scheduling
+     * a rebuild if the catalog has changed since. Builds the index on the
+     * calling thread only if there is none yet.
+     */
+    public T get() {
+        PlaceCatalog.Snapshot snapshot = mCatalog.getSnapshot();
+        synchronized (this) {
+            if (mIndex != null) {
+                if (mVersion != snapshot.version) {
+                    scheduleRebuild();
+                }
+                return mIndex;
+            }
+        }
+
+        // Build outside the lock, so that a slow first build doesn't hold up
+        // the rebuilds; racing first builds are harmless.
+        T index = build(snapshot);
+        synchronized (this) {
+            if (mIndex == null || snapshot.version > mVersion) {
+                mIndex = index;
+                mVersion = snapshot.version;
+            }
+            return mIndex;
+        }
+    }
+
+    /**
+     * Return the index of the latest snapshot that has been built, or null if
+     * there is none, scheduling a build if the index is missing or out of
+     * date. Never builds on the calling thread.
+     */
+    public synchronized T peek() {
+        if (mIndex == null || mVersion != mCatalog.getSnapshot().version) {
+            scheduleRebuild();
+        }
+        return mIndex;
+    }
+
+    /** Start rebuilding the index if it exists and is out of date. Never blocks. */
+    public synchronized void refresh() {
+        if (mIndex != null && mVersion != mCatalog.getSnapshot().version) {
+            scheduleRebuild();
+        }
+    }
+
+    /** Return the catalog version of the index, or -1 if there is none. */
+    public synchronized long getVersion() {
+        return mIndex == null ? -1 : mVersion;
+    }
+
+    /**
+     * Drop the index, e.g. when memory is low. It is built again on the next
+     * get.
+     *
+     * @return The index that was dropped, or null if there was none.
+     */
+    public synchronized T clear() {
+        T index = mIndex;
+        mIndex = null;
+        mVersion = -1;
+        mClearCount++;
+        return index;
+    }
+
+    private void scheduleRebuild() {
+        if (!mRebuildScheduled) {
+            mRebuildScheduled = true;
+            mRebuildClearCount = mClearCount;
+            mExecutor.execute(mRebuild);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway.model;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A directed pedestrian street graph in compressed sparse row (CSR) layout.
+ * Edge weights are walking times in seconds, so slopes and one-way paths
+ * (e.g. stairs) are accounted for by the graph's producer.
+ * <p>
+ * File format (big-endian): the magic number, the node count, the edge count,
+ * each node's latitude and longitude in microdegrees (ints), then each edge as
+ * the source node, the target node (ints) and the walking time in seconds
+ * (float). Edges may be in any order.
+ */
+public class StreetGraph {
+    public static final int MAGIC = 0x574b4731; // "WKG1"
+
+    /** Size of the cells of the nearest-node grid, in degrees (about 200m). */
+    private static final double CELL_DEGREES = 0.002;
+
+    private final int mNodeCount;
+    private final double[] mLats;
+    private final double[] mLngs;
+
+    /** Edges of node n are at [mEdgeOffsets[n], mEdgeOffsets[n + 1]). */
+    private final int[] mEdgeOffsets;
+    private final int[] mEdgeTargets;
+    private final float[] mEdgeSeconds;
+
+    // Grid of nodes for nearest-node lookups, also in CSR layout.
+    private final double mMinLat;
+    private final double mMinLng;
+    private final int mGridRows;
+    private final int mGridColumns;
+    private final int[] mCellOffsets;
+    private final int[] mCellNodes;
+
+    public static StreetGraph load(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    public static StreetGraph read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a street graph");
+        }
+
+        int nodeCount = in.readInt();
+        int edgeCount = in.readInt();
+        if (nodeCount < 0 || edgeCount < 0) {
+            throw new IOException("Corrupt street graph header");
+        }
+
+        double[] lats = new double[nodeCount];
+        double[] lngs = new double[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            lats[i] = in.readInt() / 1e6;
+            lngs[i] = in.readInt() / 1e6;
+        }
+
+        int[] sources = new int[edgeCount];
+        int[] targets = new int[edgeCount];
+        float[] seconds = new float[edgeCount];
+        for (int e = 0; e < edgeCount; e++) {
+            sources[e] = in.readInt();
+            targets[e] = in.readInt();
+            seconds[e] = in.readFloat();
+            if (sources[e] < 0 || sources[e] >= nodeCount || targets[e] < 0
+                    || targets[e] >= nodeCount || seconds[e] < 0) {
+                throw new IOException("Corrupt street graph edge " + e);
+            }
+        }
+
+        return new StreetGraph(lats, lngs, sources, targets, seconds);
+    }
+
+    /**
+     * Build the graph from parallel edge arrays, which are not kept.
+     */
+    public StreetGraph(double[] lats, double[] lngs, int[] sources, int[] targets,
+            float[] seconds) {
+        mNodeCount = lats.length;
+        mLats = lats;
+        mLngs = lngs;
+
+        // Counting sort of the edges by source node.
+        int edgeCount = sources.length;
+        mEdgeOffsets = new int[mNodeCount + 1];
+        for (int e = 0; e < edgeCount; e++) {
+            mEdgeOffsets[sources[e] + 1]++;
+        }
+        for (int n = 0; n < mNodeCount; n++) {
+            mEdgeOffsets[n + 1] += mEdgeOffsets[n];
+        }
+        mEdgeTargets = new int[edgeCount];
+        mEdgeSeconds = new float[edgeCount];
+        int[] fill = new int[mNodeCount];
+        System.arraycopy(mEdgeOffsets, 0, fill, 0, mNodeCount);
+        for (int e = 0; e < edgeCount; e++) {
+            int slot = fill[sources[e]]++;
+            mEdgeTargets[slot] = targets[e];
+            mEdgeSeconds[slot] = seconds[e];
+        }
+
+        // Bucket the nodes into the grid the same way.
+        double minLat = Double.MAX_VALUE;
+        double minLng = Double.MAX_VALUE;
+        double maxLat = -Double.MAX_VALUE;
+        double maxLng = -Double.MAX_VALUE;
+        for (int n = 0; n < mNodeCount; n++) {
+            minLat = Math.min(minLat, lats[n]);
+            minLng = Math.min(minLng, lngs[n]);
+            maxLat = Math.max(maxLat, lats[n]);
+            maxLng = Math.max(maxLng, lngs[n]);
+        }
+        mMinLat = mNodeCount == 0 ? 0 : minLat;
+        mMinLng = mNodeCount == 0 ? 0 : minLng;
+        mGridRows = mNodeCount == 0 ? 1 : (int) ((maxLat - minLat) / CELL_DEGREES) + 1;
+        mGridColumns = mNodeCount == 0 ? 1 : (int) ((maxLng - minLng) / CELL_DEGREES) + 1;
+
+        mCellOffsets = new int[mGridRows * mGridColumns + 1];
+        for (int n = 0; n < mNodeCount; n++) {
+            mCellOffsets[cellOf(lats[n], lngs[n]) + 1]++;
+        }
+        for (int c = 0; c < mGridRows * mGridColumns; c++) {
+            mCellOffsets[c + 1] += mCellOffsets[c];
+        }
+        mCellNodes = new int[mNodeCount];
+        int[] cellFill = new int[mGridRows * mGridColumns];
+        System.arraycopy(mCellOffsets, 0, cellFill, 0, cellFill.length);
+        for (int n = 0; n < mNodeCount; n++) {
+            mCellNodes[cellFill[cellOf(lats[n], lngs[n])]++] = n;
+        }
+    }
+
+    public int getNodeCount() {
+        return mNodeCount;
+    }
+
+    public int getEdgeCount() {
+        return mEdgeTargets.length;
+    }
+
+    public double getLat(int node) {
+        return mLats[node];
+    }
+
+    public double getLng(int node) {
+        return mLngs[node];
+    }
+
+    int getEdgeStart(int node) {
+        return mEdgeOffsets[node];
+    }
+
+    int getEdgeEnd(int node) {
+        return mEdgeOffsets[node + 1];
+    }
+
+    int getEdgeTarget(int edge) {
+        return mEdgeTargets[edge];
+    }
+
+    float getEdgeSeconds(int edge) {
+        return mEdgeSeconds[edge];
+    }
+
+    /**
+     * Return the node nearest to a point, or -1 if there is no node within a
+     * cell of the point's cell.
+     */
+    public int nearestNode(double lat, double lng) {
+        int row = (int) Math.floor((lat - mMinLat) / CELL_DEGREES);
+        int column = (int) Math.floor((lng - mMinLng) / CELL_DEGREES);
+        double cosLat = Math.cos(Math.toRadians(lat));
+
+        int nearest = -1;
+        double nearestDistance = Double.MAX_VALUE;
+        for (int r = Math.max(0, row - 1); r <= Math.min(mGridRows - 1, row + 1); r++) {
+            for (int c = Math.max(0, column - 1); c <= Math.min(mGridColumns - 1, column + 1); c++) {
+                int cell = r * mGridColumns + c;
+                for (int i = mCellOffsets[cell]; i < mCellOffsets[cell + 1]; i++) {
+                    int node = mCellNodes[i];
+                    double dLat = mLats[node] - lat;
+                    double dLng = (mLngs[node] - lng) * cosLat;
+                    double distance = dLat * dLat + dLng * dLng;
+                    if (distance < nearestDistance) {
+                        nearestDistance = distance;
+                        nearest = node;
+                    }
+                }
+            }
+        }
+
+        return nearest;
+    }
+
+    private int cellOf(double lat, double lng) {
+        int row = Math.min(mGridRows - 1, (int) ((lat - mMinLat) / CELL_DEGREES));
+        int column = Math.min(mGridColumns - 1, (int) ((lng - mMinLng) / CELL_DEGREES));
+        return row * mGridColumns + column;
+    }
+
+    /** Return the approximate size of the graph, in bytes. */
+    public long getByteCount() {
+        return 8L * mLats.length + 8L * mLngs.length + 4L * mEdgeOffsets.length
+                + 4L * mEdgeTargets.length + 4L * mEdgeSeconds.length + 4L * mCellOffsets.length
+                + 4L * mCellNodes.length;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The displayed places whose markers were trimmed, hashed by grid cell, so
+ * that the ones in the viewport can be found without looking at all the
+ * places. A place is recorded with its offset within its type's block of the
+ * displayed places (see {@link PlaceTypeRanges}), which stays the same when
+ * the blocks of other types are added or removed.
+ * <p>
+ * Not thread-safe.
+ */
+public class TrimmedPlaceGrid {
+    /** A trimmed place. */
+    public static class Entry {
+        public final Place place;
+
+        /** The offset of the place within its type's block. */
+        public final int offset;
+
+        Entry(Place place, int offset) {
+            this.place = place;
+            this.offset = offset;
+        }
+    }
+
+    private final double mCellDegrees;
+    private final HashMap<Long, ArrayList<Entry>> mCells = new HashMap<Long, ArrayList<Entry>>();
+    private int mSize;
+
+    /**
+     * @param cellDegrees The width and height of the cells, in degrees; about
+     *        the viewport size at the zoom levels markers are shown at.
+     */
+    public TrimmedPlaceGrid(double cellDegrees) {
+        mCellDegrees = cellDegrees;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void add(Place place, int offset) {
+        long key = key(row(place.lat), column(place.lng));
+        ArrayList<Entry> cell = mCells.get(key);
+        if (cell == null) {
+            cell = new ArrayList<Entry>();
+            mCells.put(key, cell);
+        }
+        cell.add(new Entry(place, offset));
+        mSize++;
+    }
+
+    /** Remove a place, e.g. when its marker is re-created for other reasons. */
+    public void remove(Place place, int offset) {
+        long key = key(row(place.lat), column(place.lng));
+        ArrayList<Entry> cell = mCells.get(key);
+        if (cell == null) {
+            return;
+        }
+        for (int i = 0; i < cell.size(); i++) {
+            Entry entry = cell.get(i);
+            if (entry.place == place && entry.offset == offset) {
+                removeAt(key, cell, i);
+                return;
+            }
+        }
+    }
+
+    /** Remove the places of a type, e.g. when its block is removed. */
+    public void removeType(Place.PlaceType type) {
+        Iterator<ArrayList<Entry>> cells = mCells.values().iterator();
+        while (cells.hasNext()) {
+            ArrayList<Entry> cell = cells.next();
+            int j = 0;
+            for (int i = 0; i < cell.size(); i++) {
+                if (cell.get(i).place.type != type) {
+                    cell.set(j++, cell.get(i));
+                }
+            }
+            mSize -= cell.size() - j;
+            cell.subList(j, cell.size()).clear();
+            if (cell.isEmpty()) {
+                cells.remove();
+            }
+        }
+    }
+
+    public void clear() {
+        mCells.clear();
+        mSize = 0;
+    }
+
+    /**
+     * Remove and return up to max of the places within the bounds. Looks at
+     * the cells overlapping the bounds, or at the non-empty cells if there
+     * are fewer of those. The bounds must not cross the antimeridian; split
+     * them if they do.
+     */
+    public List<Entry> take(double south, double west, double north, double east, int max) {
+        List<Entry> taken = new ArrayList<Entry>();
+        int top = row(north);
+        int bottom = row(south);
+        int left = column(west);
+        int right = column(east);
+        long boundsCells = (long) (top - bottom + 1) * (right - left + 1);
+
+        if (boundsCells <= mCells.size()) {
+            for (int row = bottom; row <= top && taken.size() < max; row++) {
+                for (int column = left; column <= right && taken.size() < max; column++) {
+                    long key = key(row, column);
+                    ArrayList<Entry> cell = mCells.get(key);
+                    if (cell != null) {
+                        take(key, cell, south, west, north, east, max, taken);
+                    }
+                }
+            }
+        } else {
+            List<Long> keys = new ArrayList<Long>(mCells.keySet());
+            for (int k = 0; k < keys.size() && taken.size() < max; k++) {
+                long key = keys.get(k);
+                int row = (int) (key >> 32);
+                int column = (int) key;
+                if (row >= bottom && row <= top && column >= left && column <= right) {
+                    take(key, mCells.get(key), south, west, north, east, max, taken);
+                }
+            }
+        }
+        return taken;
+    }
+
+    private void take(long key, ArrayList<Entry> cell, double south, double west, double north,
+            double east, int max, List<Entry> taken) {
+        for (int i = cell.size() - 1; i >= 0 && taken.size() < max; i--) {
+            Place place = cell.get(i).place;
+            if (place.lat >= south && place.lat <= north && place.lng >= west
+                    && place.lng <= east) {
+                taken.add(cell.get(i));
+                removeAt(key, cell, i);
+            }
+        }
+    }
+
+    private void removeAt(long key, ArrayList<Entry> cell, int i) {
+        // Order within a cell doesn't matter, so swap in the last entry.
+        cell.set(i, cell.get(cell.size() - 1));
+        cell.remove(cell.size() - 1);
+        if (cell.isEmpty()) {
+            mCells.remove(key);
+        }
+        mSize--;
+    }
+
+    private int row(double lat) {
+        return (int) Math.floor(lat / mCellDegrees);
+    }
+
+    private int column(double lng) {
+        return (int) Math.floor(lng / mCellDegrees);
+    }
+
+    private static long key(int row, int column) {
+        return (long) row << 32 | (column & 0xffffffffL);
+    }
+}
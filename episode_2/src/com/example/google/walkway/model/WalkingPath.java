@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway.model;
+
+/**
+ * Walking path geometry with precomputed levels of detail for each map zoom
+ * level. The vertices are stored in primitive arrays, and a single
+ * Douglas-Peucker pass ranks every vertex by the largest simplification
+ * tolerance at which it is still needed. Each zoom level then keeps the
+ * vertices whose rank exceeds the size of a pixel at that zoom.
+ */
+public class WalkingPath {
+    public static final int MIN_ZOOM = 0;
+    public static final int MAX_ZOOM = 21;
+
+    /** Meters per pixel at zoom 0 on the equator (256px tiles). */
+    private static final double EQUATOR_METERS_PER_PIXEL = 156543.03392;
+
+    private static final double METERS_PER_DEGREE_LAT = 110540;
+    private static final double METERS_PER_DEGREE_LNG = 111320;
+
+    private final double[] mLats;
+    private final double[] mLngs;
+    private final int mSize;
+
+    /** Vertex indices for each zoom level, or null if all vertices are kept. */
+    private final int[][] mLevels = new int[MAX_ZOOM + 1][];
+
+    /**
+     * @param lats The vertex latitudes. The array is kept, not copied.
+     * @param lngs The vertex longitudes. The array is kept, not copied.
+     * @param size The number of vertices.
+     * @param pixelTolerance The maximum deviation, in pixels, of the simplified
+     *        path from the full path.
+     */
+    public WalkingPath(double[] lats, double[] lngs, int size, float pixelTolerance) {
+        mLats = lats;
+        mLngs = lngs;
+        mSize = size;
+
+        float[] importance = computeImportance();
+
+        // Tolerance in meters, at the latitude of the path, for each zoom level.
+        double latitude = size > 0 ? lats[0] : 0;
+        double metersPerPixel = EQUATOR_METERS_PER_PIXEL * Math.cos(Math.toRadians(latitude));
+        for (int zoom = MIN_ZOOM; zoom <= MAX_ZOOM; zoom++) {
+            double tolerance = pixelTolerance * metersPerPixel / (1 << zoom);
+
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                if (importance[i] > tolerance) {
+                    count++;
+                }
+            }
+
+            if (count == size) {
+                // All the higher zoom levels keep every vertex too.
+                break;
+            }
+
+            int[] level = new int[count];
+            int j = 0;
+            for (int i = 0; i < size; i++) {
+                if (importance[i] > tolerance) {
+                    level[j++] = i;
+                }
+            }
+            mLevels[zoom] = level;
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public double getLat(int index) {
+        return mLats[index];
+    }
+
+    public double getLng(int index) {
+        return mLngs[index];
+    }
+
+    /**
+     * Return the number of vertices kept at the zoom level.
+     */
+    public int getVertexCount(float zoom) {
+        int[] level = mLevels[clampZoom(zoom)];
+        return level == null ? mSize : level.length;
+    }
+
+    /**
+     * Return the index of the n-th vertex kept at the zoom level.
+     */
+    public int getVertexIndex(float zoom, int n) {
+        int[] level = mLevels[clampZoom(zoom)];
+        return level == null ? n : level[n];
+    }
+
+    /** Return the approximate heap size of the path and its levels, in bytes. */
+    public long getByteCount() {
+        long bytes = 16L * mLats.length;
+        for (int[] level : mLevels) {
+            if (level != null) {
+                bytes += 4L * level.length;
+            }
+        }
+        return bytes;
+    }
+
+    private static int clampZoom(float zoom) {
+        return Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, (int) zoom));
+    }
+
+    /**
+     * Run Douglas-Peucker once with a zero tolerance, recording for each vertex
+     * the distance (in meters) at which it was split off, capped by the
+     * distance of its parent split so that the ranks are consistent across
+     * levels. Uses an explicit stack so long paths don't overflow the thread
+     * stack.
+     */
+    private float[] computeImportance() {
+        float[] importance = new float[mSize];
+        if (mSize == 0) {
+            return importance;
+        }
+
+        // Project to local meters once, relative to the first vertex.
+        double lat0 = mLats[0];
+        double lng0 = mLngs[0];
+        double lngScale = METERS_PER_DEGREE_LNG * Math.cos(Math.toRadians(lat0));
+        float[] xs = new float[mSize];
+        float[] ys = new float[mSize];
+        for (int i = 0; i < mSize; i++) {
+            xs[i] = (float) ((mLngs[i] - lng0) * lngScale);
+            ys[i] = (float) ((mLats[i] - lat0) * METERS_PER_DEGREE_LAT);
+        }
+
+        importance[0] = Float.MAX_VALUE;
+        importance[mSize - 1] = Float.MAX_VALUE;
+
+        // Each stack entry is a segment (first, last) and the importance of
+        // the split that created it.
+        int[] stack = new int[64];
+        float[] stackImportance = new float[32];
+        int top = 0;
+        if (mSize > 2) {
+            stack[0] = 0;
+            stack[1] = mSize - 1;
+            stackImportance[0] = Float.MAX_VALUE;
+            top = 1;
+        }
+
+        while (top > 0) {
+            top--;
+            int first = stack[2 * top];
+            int last = stack[2 * top + 1];
+            float parentImportance = stackImportance[top];
+
+            float ax = xs[first];
+            float ay = ys[first];
+            float dx = xs[last] - ax;
+            float dy = ys[last] - ay;
+            float lengthSquared = dx * dx + dy * dy;
+
+            int farthest = -1;
+            float maxDistanceSquared = -1;
+            for (int i = first + 1; i < last; i++) {
+                float px = xs[i] - ax;
+                float py = ys[i] - ay;
+                float distanceSquared;
+                if (lengthSquared == 0) {
+                    distanceSquared = px * px + py * py;
+                } else {
+                    float t = Math.max(0, Math.min(1, (px * dx + py * dy) / lengthSquared));
+                    float ex = px - t * dx;
+                    float ey = py - t * dy;
+                    distanceSquared = ex * ex + ey * ey;
+                }
+                if (distanceSquared > maxDistanceSquared) {
+                    maxDistanceSquared = distanceSquared;
+                    farthest = i;
+                }
+            }
+
+            float split = Math.min(parentImportance, (float) Math.sqrt(maxDistanceSquared));
+            importance[farthest] = split;
+
+            if (top + 2 > stackImportance.length) {
+                int[] grownStack = new int[stack.length * 2];
+                System.arraycopy(stack, 0, grownStack, 0, 2 * top);
+                stack = grownStack;
+                float[] grownImportance = new float[stackImportance.length * 2];
+                System.arraycopy(stackImportance, 0, grownImportance, 0, top);
+                stackImportance = grownImportance;
+            }
+            if (farthest - first > 1) {
+                stack[2 * top] = first;
+                stack[2 * top + 1] = farthest;
+                stackImportance[top++] = split;
+            }
+            if (last - farthest > 1) {
+                stack[2 * top] = farthest;
+                stack[2 * top + 1] = last;
+                stackImportance[top++] = split;
+            }
+        }
+
+        return importance;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway.model;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times indexing places for the heatmap and rendering tiles at city and
+ * street zoom levels, over places scattered around San Francisco. The
+ * timings are printed; the assertions only check that the tiles are sane.
+ */
+public class HeatmapRasterizerBenchmark extends TestCase {
+    private static final int PLACES = 1000000;
+    private static final int TILE_SIZE = 256;
+    private static final int RADIUS = 12;
+
+    private static final double CENTER_LAT = 37.77;
+    private static final double CENTER_LNG = -122.42;
+    /** Standard deviation of the places around the center, in degrees. */
+    private static final double SPREAD = 0.05;
+
+    private static final int[] ZOOMS = { 10, 12, 14, 16 };
+    /** Tiles rendered per zoom level, around the center, after one warm-up pass. */
+    private static final int TILES_PER_SIDE = 4;
+
+    private static List<Place> sPlaces;
+
+    private static synchronized List<Place> getPlaces() {
+        if (sPlaces == null) {
+            Random random = new Random(1);
+            sPlaces = new ArrayList<Place>(PLACES);
+            Place.PlaceType[] types = Place.PlaceType.values();
+            for (int i = 0; i < PLACES; i++) {
+                sPlaces.add(new Place("p" + i,
+                        CENTER_LAT + random.nextGaussian() * SPREAD,
+                        CENTER_LNG + random.nextGaussian() * SPREAD,
+                        types[i % types.length]));
+            }
+        }
+        return sPlaces;
+    }
+
+    public void testRenderTiles() {
+        List<Place> places = getPlaces();
+        long start = System.nanoTime();
+        HeatmapRasterizer rasterizer = new HeatmapRasterizer(new PlaceColumns(places),
+                TILE_SIZE, RADIUS);
+        long indexNanos = System.nanoTime() - start;
+        System.out.println(String.format("HeatmapRasterizerBenchmark: %d places indexed in %d ms",
+                places.size(), indexNanos / 1000000));
+
+        for (int zoom : ZOOMS) {
+            int centerX = tileX(CENTER_LNG, zoom);
+            int centerY = tileY(CENTER_LAT, zoom);
+
+            // Warm up, which also computes the zoom level's maximum intensity.
+            renderAround(rasterizer, centerX, centerY, zoom, null);
+
+            long[] nanos = new long[TILES_PER_SIDE * TILES_PER_SIDE];
+            int rendered = renderAround(rasterizer, centerX, centerY, zoom, nanos);
+            Arrays.sort(nanos);
+            System.out.println(String.format(
+                    "HeatmapRasterizerBenchmark: zoom %d, %d of %d tiles with places, "
+                            + "median %.2f ms, max %.2f ms",
+                    zoom, rendered, nanos.length, nanos[nanos.length / 2] / 1e6,
+                    nanos[nanos.length - 1] / 1e6));
+            assertTrue("No tiles rendered at zoom " + zoom, rendered > 0);
+        }
+    }
+
+    public void testEmptyTileIsNull() {
+        HeatmapRasterizer rasterizer = new HeatmapRasterizer(new PlaceColumns(getPlaces()),
+                TILE_SIZE, RADIUS);
+        // The tile with the null island, far from any place.
+        assertNull(rasterizer.render(tileX(0, 8), tileY(0, 8), 8));
+
+        int[] pixels = rasterizer.render(tileX(CENTER_LNG, 14), tileY(CENTER_LAT, 14), 14);
+        assertNotNull(pixels);
+        assertEquals(TILE_SIZE * TILE_SIZE, pixels.length);
+    }
+
+    /**
+     * Render the tiles around a tile, timing each one if nanos is given.
+     *
+     * @return The number of tiles that had places.
+     */
+    private static int renderAround(HeatmapRasterizer rasterizer, int centerX, int centerY,
+            int zoom, long[] nanos) {
+        int rendered = 0;
+        int first = -TILES_PER_SIDE / 2;
+        for (int i = 0; i < TILES_PER_SIDE; i++) {
+            for (int j = 0; j < TILES_PER_SIDE; j++) {
+                long start = System.nanoTime();
+                int[] pixels = rasterizer.render(centerX + first + i, centerY + first + j, zoom);
+                if (nanos != null) {
+                    nanos[i * TILES_PER_SIDE + j] = System.nanoTime() - start;
+                }
+                if (pixels != null) {
+                    rendered++;
+                }
+            }
+        }
+        return rendered;
+    }
+
+    private static int tileX(double lng, int zoom) {
+        return (int) ((lng + 180) / 360 * (1 << zoom));
+    }
+
+    private static int tileY(double lat, int zoom) {
+        double sin = Math.sin(Math.toRadians(lat));
+        double y = 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+        return (int) (y * (1 << zoom));
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway.model;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Applies batches to a {@link PlaceCatalog} on a writer thread while reader
+ * threads look places up, checking that no reader ever sees part of a batch,
+ * and comparing the read throughput with and without the writer.
+ * <p>
+ * Every batch renames all the places to its generation number, and replaces
+ * the previous generation's marker place with its own, so a snapshot that
+ * mixes generations, or has no marker or two, is a partial batch.
+ */
+public class PlaceCatalogStressTest extends TestCase {
+    private static final int PLACES_PER_BATCH = 200;
+    private static final int READERS = 4;
+    private static final long RUN_MILLIS = 2000;
+
+    /** Readers under writes must keep at least this share of their idle throughput. */
+    private static final double MIN_THROUGHPUT_RATIO = 0.1;
+
+    private PlaceCatalog mCatalog;
+
+    @Override
+    protected void setUp() {
+        mCatalog = new PlaceCatalog();
+        mCatalog.apply(newBatch(0));
+    }
+
+    public void testSnapshotIsUnaffectedByLaterBatches() {
+        PlaceCatalog.Snapshot snapshot = mCatalog.getSnapshot();
+        mCatalog.apply(newBatch(1));
+
+        assertEquals(0, checkSnapshot(snapshot));
+        assertEquals(1, checkSnapshot(mCatalog.getSnapshot()));
+        assertNull(mCatalog.getSnapshot().get(markerId(0)));
+        assertEquals(snapshot.version + 1, mCatalog.getSnapshot().version);
+    }
+
+    public void testReadersNeverSeePartialBatches() throws InterruptedException {
+        long idleReads = run(false).reads;
+        Result result = run(true);
+
+        System.out.println(String.format(
+                "PlaceCatalogStressTest: %d readers, %d reads/s idle, %d reads/s under %d batches/s",
+                READERS, idleReads * 1000 / RUN_MILLIS, result.reads * 1000 / RUN_MILLIS,
+                result.batches * 1000 / RUN_MILLIS));
+        assertTrue("No batches were applied", result.batches > 0);
+        assertTrue(String.format("Reads dropped from %d to %d under writes", idleReads,
+                result.reads), result.reads >= idleReads * MIN_THROUGHPUT_RATIO);
+    }
+
+    private static class Result {
+        long reads;
+        long batches;
+    }
+
+    /**
+     * Run the readers, and the writer if asked, for RUN_MILLIS, failing if a
+     * reader saw a partial batch or a snapshot older than one it had seen.
+     */
+    private Result run(boolean write) throws InterruptedException {
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicLong reads = new AtomicLong();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int r = 0; r < READERS; r++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        long count = 0;
+                        long lastVersion = -1;
+                        while (!stop.get()) {
+                            PlaceCatalog.Snapshot snapshot = mCatalog.getSnapshot();
+                            assertTrue(snapshot.version >= lastVersion);
+                            lastVersion = snapshot.version;
+                            int generation = checkSnapshot(snapshot);
+                            assertEquals(snapshot.version - 1, generation);
+                            count += snapshot.size() + 1;
+                        }
+                        reads.addAndGet(count);
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            }));
+        }
+
+        final Result result = new Result();
+        if (write) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int generation = (int) mCatalog.getSnapshot().version;
+                        while (!stop.get()) {
+                            mCatalog.apply(newBatch(generation++));
+                            result.batches++;
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(RUN_MILLIS);
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (failure.get() != null) {
+            AssertionError error = new AssertionError("Reader or writer failed");
+            error.initCause(failure.get());
+            throw error;
+        }
+        result.reads = reads.get();
+        return result;
+    }
+
+    private static PlaceCatalog.Batch newBatch(int generation) {
+        PlaceCatalog.Batch batch = new PlaceCatalog.Batch();
+        String name = String.valueOf(generation);
+        for (int i = 0; i < PLACES_PER_BATCH; i++) {
+            batch.upsert(new Place("p" + i, name, i * 1e-4, 0, Place.PlaceType.PARK));
+        }
+        if (generation > 0) {
+            batch.delete(markerId(generation - 1));
+        }
+        batch.upsert(new Place(markerId(generation), name, 0, 0, Place.PlaceType.MONUMENT));
+        return batch;
+    }
+
+    private static String markerId(int generation) {
+        return "m" + generation;
+    }
+
+    /**
+     * Check that every place of the snapshot is of the same generation, and
+     * that it has that generation's marker and no other.
+     *
+     * @return The generation.
+     */
+    private static int checkSnapshot(PlaceCatalog.Snapshot snapshot) {
+        assertEquals(PLACES_PER_BATCH + 1, snapshot.size());
+        String name = snapshot.get(0).name;
+        int generation = Integer.parseInt(name);
+        for (int i = 0; i < PLACES_PER_BATCH; i++) {
+            Place place = snapshot.get("p" + i);
+            assertNotNull(place);
+            assertEquals(name, place.name);
+        }
+        Place marker = snapshot.get(markerId(generation));
+        assertNotNull(marker);
+        assertEquals(name, marker.name);
+        return generation;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway.model;
+
+import junit.framework.TestCase;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class PlaceCollationTest extends TestCase {
+    private static final int PLACES = 5000;
+
+    /** Few distinct words, so that many names share long prefixes. */
+    private static final String[] WORDS = {
+        "Café", "cafe", "Saint", "St.", "Bakery", "Park", "Museum", "Øst", "Zoo", "the"
+    };
+
+    private final Random mRandom = new Random(1);
+    private PlaceCatalog mCatalog;
+    private ExecutorService mExecutor;
+
+    @Override
+    protected void setUp() {
+        mCatalog = new PlaceCatalog();
+        mExecutor = Executors.newFixedThreadPool(4);
+        PlaceCatalog.Batch batch = new PlaceCatalog.Batch();
+        for (int i = 0; i < PLACES; i++) {
+            batch.upsert(newPlace("p" + i));
+        }
+        mCatalog.apply(batch);
+    }
+
+    @Override
+    protected void tearDown() {
+        mExecutor.shutdown();
+    }
+
+    public void testOrderMatchesCollator() throws InterruptedException {
+        PlaceCatalog.Snapshot snapshot = mCatalog.getSnapshot();
+        PlaceCollation collation = new PlaceCollation(snapshot, Locale.FRANCE, mExecutor);
+        assertSorted(collation.sort(snapshot.getPlaces()), snapshot.size());
+    }
+
+    public void testUpdateOrdersChangedPlaces() throws InterruptedException {
+        PlaceCollation collation = new PlaceCollation(mCatalog.getSnapshot(), Locale.FRANCE,
+                mExecutor);
+
+        PlaceCatalog.Batch batch = new PlaceCatalog.Batch();
+        for (int i = 0; i < 50; i++) {
+            batch.upsert(newPlace("new" + i));
+            batch.upsert(newPlace("p" + mRandom.nextInt(PLACES)));
+            batch.delete("p" + mRandom.nextInt(PLACES));
+        }
+        PlaceCatalog.Snapshot snapshot = mCatalog.apply(batch);
+
+        PlaceCollation updated = collation.update(snapshot, mExecutor);
+        assertEquals(snapshot.version, updated.getVersion());
+        assertTrue(updated.toString(), updated.toString().contains("updated"));
+        assertSorted(updated.sort(snapshot.getPlaces()), snapshot.size());
+    }
+
+    public void testLargeUpdateStartsOver() throws InterruptedException {
+        PlaceCollation collation = new PlaceCollation(mCatalog.getSnapshot(), Locale.FRANCE,
+                mExecutor);
+
+        PlaceCatalog.Batch batch = new PlaceCatalog.Batch();
+        for (int i = 0; i < PLACES / 2; i++) {
+            batch.upsert(newPlace("p" + i));
+        }
+        PlaceCatalog.Snapshot snapshot = mCatalog.apply(batch);
+
+        PlaceCollation updated = collation.update(snapshot, mExecutor);
+        assertTrue(updated.toString(), updated.toString().contains("collated"));
+        assertSorted(updated.sort(snapshot.getPlaces()), snapshot.size());
+    }
+
+    private Place newPlace(String id) {
+        StringBuilder name = new StringBuilder();
+        for (int w = 0; w < 3 + mRandom.nextInt(4); w++) {
+            name.append(WORDS[mRandom.nextInt(WORDS.length)]).append(' ');
+        }
+        return new Place(id, name.toString().trim(), 0, 0, Place.PlaceType.CAFE);
+    }
+
+    private static void assertSorted(List<Place> places, int size) {
+        assertEquals(size, places.size());
+        final Collator collator = Collator.getInstance(Locale.FRANCE);
+        List<Place> expected = new ArrayList<Place>(places);
+        Collections.sort(expected, new Comparator<Place>() {
+            @Override
+            public int compare(Place a, Place b) {
+                return collator.compare(a.name, b.name);
+            }
+        });
+        for (int i = 0; i < size; i++) {
+            assertEquals("At " + i, expected.get(i).name, places.get(i).name);
+        }
+    }
+}
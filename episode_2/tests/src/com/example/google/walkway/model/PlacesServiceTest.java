@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway.model;
+
+import junit.framework.TestCase;
+
+public class PlacesServiceTest extends TestCase {
+    public void testTrimCachesWithTypeWithoutPlaces() {
+        // The shipped catalog has no bakeries.
+        assertTrue(PlacesService.getPlacesByType(Place.PlaceType.BAKERY).isEmpty());
+        PlacesService.getFacetCounter();
+        PlacesService.getSearchIndex();
+        PlacesService.getOpeningHoursIndex();
+
+        assertTrue(PlacesService.trimCaches() > 0);
+
+        // Everything was trimmed, and is rebuilt when next needed.
+        assertEquals(0, PlacesService.trimCaches());
+        assertNotNull(PlacesService.getFacetCounter());
+    }
+}
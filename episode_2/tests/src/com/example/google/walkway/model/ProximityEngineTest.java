@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway.model;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ProximityEngineTest extends TestCase {
+    private static final double ENTER_METERS = 30;
+    private static final double EXIT_METERS = 60;
+
+    /** About 11 m of latitude. */
+    private static final double STEP = 0.0001;
+
+    private final Place mPark = new Place("park", 37.77, -122.42, Place.PlaceType.PARK);
+    private final Place mCafe = new Place("cafe", 37.78, -122.42, Place.PlaceType.CAFE);
+
+    private final List<String> mEvents = new ArrayList<String>();
+
+    private final ProximityEngine.Listener mListener = new ProximityEngine.Listener() {
+        @Override
+        public void onPlaceEntered(Place place) {
+            mEvents.add("entered " + place.id);
+        }
+
+        @Override
+        public void onPlaceExited(Place place) {
+            mEvents.add("exited " + place.id);
+        }
+    };
+
+    public void testEnterAndExit() {
+        ProximityEngine engine = new ProximityEngine(Arrays.asList(mPark, mCafe),
+                ENTER_METERS, EXIT_METERS);
+        assertTrue(engine.addFix(mPark.lat + STEP, mPark.lng));
+        assertFalse(engine.addFix(mPark.lat + 4 * STEP, mPark.lng));
+        engine.processFixes(mListener);
+        assertEquals(Arrays.asList("entered park"), mEvents);
+
+        engine.addFix(mPark.lat + 6 * STEP, mPark.lng);
+        engine.processFixes(mListener);
+        assertEquals(Arrays.asList("entered park", "exited park"), mEvents);
+    }
+
+    public void testNewPlacesKeepInsideSetAndPendingFixes() {
+        ProximityEngine engine = new ProximityEngine(Arrays.asList(mPark, mCafe),
+                ENTER_METERS, EXIT_METERS);
+        engine.addFix(mPark.lat, mPark.lng);
+        engine.processFixes(mListener);
+        engine.addFix(mPark.lat + STEP, mPark.lng);
+
+        // The displayed places change; the park is now a different object.
+        Place park = new Place("park", mPark.lat, mPark.lng, Place.PlaceType.PARK);
+        ProximityEngine next = new ProximityEngine(Arrays.asList(mCafe, park), ENTER_METERS,
+                EXIT_METERS);
+        next.carryOver(engine);
+        engine = next;
+        assertTrue(engine.isInside(park));
+
+        assertFalse("The pending fix is kept", engine.addFix(mPark.lat + 2 * STEP, mPark.lng));
+        engine.processFixes(mListener);
+        assertEquals(Arrays.asList("entered park"), mEvents);
+    }
+
+    public void testRemovedPlaceIsDroppedWithoutExit() {
+        ProximityEngine engine = new ProximityEngine(Arrays.asList(mPark, mCafe),
+                ENTER_METERS, EXIT_METERS);
+        engine.addFix(mPark.lat, mPark.lng);
+        engine.processFixes(mListener);
+
+        ProximityEngine next = new ProximityEngine(Arrays.asList(mCafe), ENTER_METERS,
+                EXIT_METERS);
+        next.carryOver(engine);
+        engine = next;
+        assertFalse(engine.isInside(mPark));
+        engine.addFix(mCafe.lat, mCafe.lng);
+        engine.processFixes(mListener);
+        assertEquals(Arrays.asList("entered park", "entered cafe"), mEvents);
+    }
+}
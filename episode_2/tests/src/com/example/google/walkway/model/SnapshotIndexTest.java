@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway.model;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Checks that a {@link SnapshotIndex} serves the previous index while the
+ * catalog change is rebuilt on the executor, and swaps the new one in after.
+ */
+public class SnapshotIndexTest extends TestCase {
+    /** Runs the rebuilds when the test says so. */
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> mPending = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            mPending.add(runnable);
+        }
+
+        void runAll() {
+            List<Runnable> pending = new ArrayList<Runnable>(mPending);
+            mPending.clear();
+            for (Runnable runnable : pending) {
+                runnable.run();
+            }
+        }
+    }
+
+    private PlaceCatalog mCatalog;
+    private ManualExecutor mExecutor;
+    private SnapshotIndex<Long> mIndex;
+    private int mBuildCount;
+
+    @Override
+    protected void setUp() {
+        mCatalog = new PlaceCatalog();
+        mExecutor = new ManualExecutor();
+        mIndex = new SnapshotIndex<Long>(mCatalog, mExecutor) {
+            @Override
+            protected Long build(PlaceCatalog.Snapshot snapshot) {
+                mBuildCount++;
+                return snapshot.version;
+            }
+        };
+    }
+
+    public void testFirstBuildIsOnCaller() {
+        assertEquals(Long.valueOf(0), mIndex.get());
+        assertEquals(1, mBuildCount);
+        assertTrue(mExecutor.mPending.isEmpty());
+    }
+
+    public void testServesPreviousIndexUntilRebuilt() {
+        mIndex.get();
+        upsert("a");
+        upsert("b");
+
+        assertEquals(Long.valueOf(0), mIndex.get());
+        assertEquals(Long.valueOf(0), mIndex.get());
+        assertEquals("One rebuild is scheduled", 1, mExecutor.mPending.size());
+        assertEquals(1, mBuildCount);
+
+        mExecutor.runAll();
+        assertEquals(Long.valueOf(2), mIndex.get());
+        assertEquals(2, mIndex.getVersion());
+        assertTrue(mExecutor.mPending.isEmpty());
+    }
+
+    public void testRefreshOnlyRebuildsExistingIndexes() {
+        upsert("a");
+        mIndex.refresh();
+        assertTrue(mExecutor.mPending.isEmpty());
+
+        mIndex.get();
+        upsert("b");
+        mIndex.refresh();
+        mExecutor.runAll();
+        assertEquals(2, mIndex.getVersion());
+    }
+
+    public void testClearedIndexIsNotRestoredByRebuild() {
+        mIndex.get();
+        upsert("a");
+        mIndex.get();
+        assertNotNull(mIndex.clear());
+
+        mExecutor.runAll();
+        assertEquals(-1, mIndex.getVersion());
+        assertEquals(Long.valueOf(1), mIndex.get());
+    }
+
+    public void testPeekNeverBuildsOnCaller() {
+        assertNull(mIndex.peek());
+        assertEquals(0, mBuildCount);
+        assertEquals(1, mExecutor.mPending.size());
+
+        mExecutor.runAll();
+        assertEquals(Long.valueOf(0), mIndex.peek());
+        upsert("a");
+        assertEquals(Long.valueOf(0), mIndex.peek());
+        mExecutor.runAll();
+        assertEquals(Long.valueOf(1), mIndex.peek());
+        assertEquals(2, mBuildCount);
+    }
+
+    private void upsert(String id) {
+        mCatalog.apply(new PlaceCatalog.Batch().upsert(
+                new Place(id, 0, 0, Place.PlaceType.PARK)));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.walkway.model;
+
+import junit.framework.TestCase;
+
+import java.util.HashSet;
+import java.util.List;
+
+public class TrimmedPlaceGridTest extends TestCase {
+    private static final double CELL = 0.01;
+
+    private TrimmedPlaceGrid mGrid;
+
+    @Override
+    protected void setUp() {
+        mGrid = new TrimmedPlaceGrid(CELL);
+        // A 100x100 grid of places, 0.001 degrees apart, parks then cafes.
+        for (int i = 0; i < 10000; i++) {
+            Place.PlaceType type = i < 5000 ? Place.PlaceType.PARK : Place.PlaceType.CAFE;
+            mGrid.add(new Place("p" + i, 37.7 + (i / 100) * 0.001, -122.5 + (i % 100) * 0.001,
+                    type), i < 5000 ? i : i - 5000);
+        }
+    }
+
+    public void testTakeOnlyPlacesInBounds() {
+        List<TrimmedPlaceGrid.Entry> taken = mGrid.take(37.7095, -122.4905, 37.7205,
+                -122.4795, Integer.MAX_VALUE);
+        // Rows 10-20 and columns 10-20.
+        assertEquals(11 * 11, taken.size());
+        for (TrimmedPlaceGrid.Entry entry : taken) {
+            assertTrue(entry.place.lat >= 37.7095 && entry.place.lat <= 37.7205);
+            assertTrue(entry.place.lng >= -122.4905 && entry.place.lng <= -122.4795);
+        }
+        assertEquals(10000 - 121, mGrid.size());
+        assertTrue(mGrid.take(37.7095, -122.4905, 37.7205, -122.4795, 10).isEmpty());
+    }
+
+    public void testTakeIsCapped() {
+        // Zoomed far out: everything is in bounds.
+        HashSet<Place> places = new HashSet<Place>();
+        for (int round = 0; round < 100; round++) {
+            List<TrimmedPlaceGrid.Entry> taken = mGrid.take(-85, -180, 85, 180, 100);
+            assertEquals(100, taken.size());
+            for (TrimmedPlaceGrid.Entry entry : taken) {
+                assertTrue("Taken twice", places.add(entry.place));
+            }
+        }
+        assertEquals(0, mGrid.size());
+    }
+
+    public void testRemove() {
+        List<TrimmedPlaceGrid.Entry> taken = mGrid.take(37.7, -122.5, 37.7, -122.5, 1);
+        assertEquals(1, taken.size());
+        mGrid.add(taken.get(0).place, taken.get(0).offset);
+
+        mGrid.remove(taken.get(0).place, taken.get(0).offset);
+        assertEquals(9999, mGrid.size());
+        assertTrue(mGrid.take(37.7, -122.5, 37.7, -122.5, 1).isEmpty());
+
+        mGrid.removeType(Place.PlaceType.PARK);
+        assertEquals(5000, mGrid.size());
+        for (TrimmedPlaceGrid.Entry entry : mGrid.take(-85, -180, 85, 180, 10000)) {
+            assertEquals(Place.PlaceType.CAFE, entry.place.type);
+        }
+    }
+}